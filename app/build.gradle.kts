@@ -31,6 +31,19 @@ android {
         sourceCompatibility = JavaVersion.VERSION_11
         targetCompatibility = JavaVersion.VERSION_11
     }
+    testOptions {
+        unitTests {
+            // WidgetLoadTest inflates the widget layout and decodes photos under Robolectric
+            isIncludeAndroidResources = true
+            all {
+                // The heavy load scenarios hold 100 MP decodes, the regular run does not need that much
+                val heavy = System.getProperty("snoof.load.heavy") ?: "false"
+                it.maxHeapSize = if (heavy == "true") "2g" else "1g"
+                it.systemProperty("snoof.load.heavy", heavy)
+                it.systemProperty("snoof.load.record", System.getProperty("snoof.load.record") ?: "false")
+            }
+        }
+    }
 }
 
 dependencies {
@@ -39,6 +52,8 @@ dependencies {
     implementation(libs.activity)
     implementation(libs.constraintlayout)
     testImplementation(libs.junit)
+    testImplementation(libs.robolectric)
+    testImplementation(libs.test.core)
     androidTestImplementation(libs.ext.junit)
     androidTestImplementation(libs.espresso.core)
 }
\ No newline at end of file
@@ -0,0 +1,193 @@
+package snoof.widget.photo;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Album mode: a widget that cycles through a set of photos.
+ * The photos live in the {@link SourceImageStore}, kept there while the widget's state lists
+ * them. A single inexact alarm drives every album widget, and it does not wake the device. A
+ * tick only switches a widget to a frame that is already rendered, so it never decodes; the
+ * frames after the current one are rendered ahead of time on the update pool. Each widget
+ * keeps at most {@link #PREFETCH_FRAMES} frames beyond the one it shows.
+ */
+public final class AlbumRotator {
+
+    private static final String TAG = "AlbumRotator";
+    private static final String PREFS_NAME = "PhotoWidgetPrefs";
+    private static final String PREF_INTERVAL_KEY = "album_interval_minutes";
+
+    static final String ACTION_ROTATE = "snoof.widget.photo.ACTION_ROTATE_ALBUM";
+
+    public static final int MAX_PHOTOS = 30;
+    private static final int PREFETCH_FRAMES = 3;
+    private static final int DEFAULT_INTERVAL_MINUTES = 60;
+
+    private AlbumRotator() {}
+
+    /**
+     * Makes a widget an album of the given photos, already imported into the store, and shows
+     * the first one. Replaces any album the widget had.
+     */
+    public static synchronized void setAlbum(Context context, int appWidgetId, List<String> hashes) {
+        List<String> previous = getAlbum(context, appWidgetId);
+
+        // The new album is in the state before the old photos are released, photos in both stay
+        WidgetStateStore.update(context, appWidgetId, state -> state.withAlbum(hashes));
+        SourceImageStore.assign(context, appWidgetId, hashes.get(0));
+
+        for (String hash : previous) {
+            SourceImageStore.releaseHash(context, hash);
+        }
+        scheduleRotation(context);
+    }
+
+    /**
+     * Turns a widget back into a single photo widget, releasing the album's photos. The
+     * photo the widget currently shows stays stored, its state still refers to it.
+     */
+    public static synchronized void clear(Context context, int appWidgetId) {
+        List<String> album = getAlbum(context, appWidgetId);
+        if (album.isEmpty()) return;
+
+        WidgetStateStore.update(context, appWidgetId, state -> state.withAlbum(Collections.emptyList()));
+        for (String hash : album) {
+            SourceImageStore.releaseHash(context, hash);
+        }
+    }
+
+    /**
+     * Returns the photos of a widget's album in order, empty if it is not an album.
+     */
+    public static List<String> getAlbum(Context context, int appWidgetId) {
+        return WidgetStateStore.get(context, appWidgetId).album;
+    }
+
+    /**
+     * Starts the rotation alarm unless it is already set. The alarm is inexact and of the
+     * non waking kind, so the system batches it with other alarms and holds it while the
+     * device sleeps.
+     */
+    public static void scheduleRotation(Context context) {
+        Intent intent = new Intent(context, PhotoPickerWidgetProvider.class).setAction(ACTION_ROTATE);
+        if (PendingIntent.getBroadcast(context, 0, intent,
+                PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+
+        long interval = getPrefs(context).getInt(PREF_INTERVAL_KEY, DEFAULT_INTERVAL_MINUTES) * 60_000L;
+        AlarmManager alarmManager = context.getSystemService(AlarmManager.class);
+        alarmManager.setInexactRepeating(AlarmManager.RTC, System.currentTimeMillis() + interval, interval,
+                PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_IMMUTABLE));
+    }
+
+    /**
+     * Stops the rotation alarm if no widget is an album anymore.
+     */
+    public static void cancelRotationIfUnused(Context context, AppWidgetManager appWidgetManager) {
+        if (getAlbumWidgetIds(context, appWidgetManager).length > 0) return;
+
+        Intent intent = new Intent(context, PhotoPickerWidgetProvider.class).setAction(ACTION_ROTATE);
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent,
+                PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_NO_CREATE);
+        if (pendingIntent != null) {
+            context.getSystemService(AlarmManager.class).cancel(pendingIntent);
+            pendingIntent.cancel();
+        }
+    }
+
+    /**
+     * One rotation tick: every album widget whose next frame is ready moves on to it, and
+     * the frames after that are prepared. Calls onFinished when all of it is done or the
+     * receiver's time runs out.
+     */
+    static void rotate(Context context, AppWidgetManager appWidgetManager, Runnable onFinished) {
+        Context appContext = context.getApplicationContext();
+        WidgetUpdateScheduler.execute(() -> {
+            List<CompletableFuture<?>> work = new ArrayList<>();
+            try {
+                for (int appWidgetId : getAlbumWidgetIds(appContext, appWidgetManager)) {
+                    if (advance(appContext, appWidgetManager, appWidgetId)) {
+                        // A cache hit, the update only pushes the Uri of the prepared frame
+                        work.add(WidgetUpdateScheduler.request(appContext, appWidgetManager, appWidgetId));
+                    }
+                    work.add(prefetchAsync(appContext, appWidgetManager, appWidgetId));
+                }
+            } finally {
+                WidgetUpdateScheduler.whenAllDone(work.toArray(new CompletableFuture<?>[0]), onFinished);
+            }
+        });
+    }
+
+    /**
+     * Renders the frames that follow the one a widget shows, on the update pool, and drops
+     * frames that are no longer among them.
+     */
+    public static CompletableFuture<Void> prefetchAsync(Context context, AppWidgetManager appWidgetManager,
+                                                        int appWidgetId) {
+        Context appContext = context.getApplicationContext();
+        return WidgetUpdateScheduler.execute(() -> prefetch(appContext, appWidgetManager, appWidgetId));
+    }
+
+    private static void prefetch(Context context, AppWidgetManager appWidgetManager, int appWidgetId) {
+        WidgetState state = WidgetStateStore.get(context, appWidgetId);
+        List<String> album = state.album;
+        if (album.isEmpty()) return;
+
+        int position = state.albumPosition;
+        Set<String> keep = new HashSet<>();
+        for (int i = 0; i <= PREFETCH_FRAMES && i < album.size(); i++) {
+            String hash = album.get((position + i) % album.size());
+            // The current frame is normally there already, rendered by the last update
+            RenderKey key = PhotoPickerWidgetProvider.prerender(context, appWidgetManager, appWidgetId, hash);
+            keep.add(key.name());
+        }
+        RenderCache.retainOnly(context, appWidgetId, keep);
+    }
+
+    private static synchronized boolean advance(Context context, AppWidgetManager appWidgetManager, int appWidgetId) {
+        WidgetState state = WidgetStateStore.get(context, appWidgetId);
+        List<String> album = state.album;
+        if (album.size() < 2) return false;
+
+        int next = (state.albumPosition + 1) % album.size();
+        String hash = album.get(next);
+
+        // Never decode on the tick. Keep the current photo until the prefetch has caught up.
+        RenderKey key = PhotoPickerWidgetProvider.getRenderKey(context, appWidgetManager, appWidgetId, hash);
+        if (!RenderCache.contains(context, key)) {
+            Log.d(TAG, "Frame not ready for widget " + appWidgetId + ", skipping this tick");
+            return false;
+        }
+
+        WidgetStateStore.update(context, appWidgetId, current -> current.withAlbumPosition(next));
+        SourceImageStore.assign(context, appWidgetId, hash);
+        return true;
+    }
+
+    private static int[] getAlbumWidgetIds(Context context, AppWidgetManager appWidgetManager) {
+        int[] appWidgetIds = appWidgetManager.getAppWidgetIds(
+                new ComponentName(context, PhotoPickerWidgetProvider.class));
+        return Arrays.stream(appWidgetIds)
+                .filter(id -> !getAlbum(context, id).isEmpty())
+                .toArray();
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
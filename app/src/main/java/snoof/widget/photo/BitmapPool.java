@@ -0,0 +1,209 @@
+package snoof.widget.photo;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The process wide view of bitmap memory. Holds the budget every bitmap cache is sized
+ * from, derived from ActivityManager.getMemoryClass, and a small pool of bitmaps that are no
+ * longer needed so the next decode or render can reuse their memory (inBitmap, reconfigure)
+ * instead of allocating.
+ *
+ * When memory gets tight, either because a decode asks for room with {@link #reserve(long)}
+ * or because the system calls {@link #onTrimMemory(int)}, memory is given up cheapest to
+ * rebuild first:
+ * <ol>
+ *     <li>the pool,</li>
+ *     <li>scaled photos kept by {@link RenderPipeline},</li>
+ *     <li>decoded photos kept by {@link RenderPipeline} and the shape masks.</li>
+ * </ol>
+ * Decodes that would not fit the budget even then are subsampled further, see
+ * {@link #fitSampleSize(int, int, int, Bitmap.Config)}: a large photo comes out softer
+ * rather than getting the process killed.
+ */
+public final class BitmapPool {
+
+    private static final String TAG = "BitmapPool";
+
+    // Until init runs, assume the whole heap is ours like the memory class usually says
+    private static volatile long budgetBytes = Runtime.getRuntime().maxMemory() / 2;
+
+    private static final List<Bitmap> pool = new ArrayList<>();
+    private static long pooledBytes;
+
+    private BitmapPool() {}
+
+    /**
+     * Sets the budget from the device's memory class. Called from
+     * {@link SnoofApplication#onCreate()}, before anything is cached.
+     */
+    public static void init(Context context) {
+        ActivityManager activityManager = context.getSystemService(ActivityManager.class);
+        int memoryClassMb = activityManager.getMemoryClass();
+        if (memoryClassMb > 0) {
+            // Half for bitmaps, the rest is for everything else the process does
+            budgetBytes = memoryClassMb * 1024L * 1024L / 2;
+        }
+        Log.d(TAG, "Bitmap budget " + budgetBytes / 1024 / 1024 + " MB");
+    }
+
+    /**
+     * A share of the budget in kilobytes, for sizing an LruCache.
+     *
+     * @param divisor 4 for a quarter of the budget and so on.
+     */
+    static int shareKb(int divisor) {
+        return (int) (budgetBytes / divisor / 1024);
+    }
+
+    /**
+     * Returns a pooled bitmap that a decode of width x height in the given format can be
+     * written into through BitmapFactory.Options.inBitmap, or null if none is big enough.
+     * The caller owns the result; if the decode does not use it, hand it back with
+     * {@link #release(Bitmap)}.
+     */
+    public static synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        long needed = (long) width * height * bytesPerPixel(config);
+        Bitmap best = null;
+        for (Bitmap candidate : pool) {
+            int size = candidate.getAllocationByteCount();
+            if (size >= needed && (best == null || size < best.getAllocationByteCount())) {
+                best = candidate;
+            }
+        }
+        if (best != null) {
+            pool.remove(best);
+            pooledBytes -= best.getAllocationByteCount();
+        }
+        return best;
+    }
+
+    /**
+     * Returns a mutable, transparent bitmap of the given size: a pooled one reconfigured to
+     * it when possible, otherwise a new one.
+     */
+    public static Bitmap obtain(int width, int height, Bitmap.Config config) {
+        Bitmap reused = get(width, height, config);
+        if (reused != null) {
+            reused.reconfigure(width, height, config);
+            reused.eraseColor(Color.TRANSPARENT);
+            return reused;
+        }
+        reserve((long) width * height * bytesPerPixel(config));
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Hands over a bitmap its owner no longer needs. Kept for reuse while the pool has room,
+     * recycled otherwise. Only for bitmaps nobody else can still be drawing: never a bitmap
+     * shared through a cache, or one attached to a view.
+     */
+    public static void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+        if (bitmap.isMutable() && bitmap.getConfig() != Bitmap.Config.HARDWARE) {
+            synchronized (BitmapPool.class) {
+                int size = bitmap.getAllocationByteCount();
+                if (pooledBytes + size <= budgetBytes / 16 && !pool.contains(bitmap)) {
+                    pool.add(bitmap);
+                    pooledBytes += size;
+                    return;
+                }
+            }
+        }
+        bitmap.recycle();
+    }
+
+    /**
+     * Makes room for an allocation of the given size by trimming the caches, in the order
+     * described above, until the bitmaps they hold plus the new one fit the budget.
+     */
+    public static void reserve(long bytes) {
+        long excess = liveBytes() + bytes - budgetBytes;
+        if (excess <= 0) return;
+
+        excess -= clearPool();
+        if (excess > 0) excess -= RenderPipeline.trimScaled(excess);
+        if (excess > 0) excess -= RenderPipeline.trimDecoded(excess);
+        if (excess > 0) BitmapProcessor.trimShapeMasks(excess);
+    }
+
+    /**
+     * Raises a sample size until a decode at it takes at most half the budget. The whole
+     * budget would push every cache out for one photo.
+     */
+    public static int fitSampleSize(int width, int height, int sampleSize, Bitmap.Config config) {
+        long limit = budgetBytes / 2;
+        while ((long) (width / sampleSize) * (height / sampleSize) * bytesPerPixel(config) > limit) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Drops memory according to how hard the system is pressed, see the order above.
+     */
+    public static void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            clearPool();
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            RenderPipeline.trimScaled(Long.MAX_VALUE);
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            // Also reached once the UI is hidden, nothing is being edited then
+            RenderPipeline.trimDecoded(Long.MAX_VALUE);
+            BitmapProcessor.trimShapeMasks(Long.MAX_VALUE);
+        }
+        Log.d(TAG, "Trimmed at level " + level + ", " + liveBytes() / 1024 + " KB still cached");
+    }
+
+    /**
+     * Bytes held by the pool and every bitmap cache.
+     */
+    public static long liveBytes() {
+        long pooled;
+        synchronized (BitmapPool.class) {
+            pooled = pooledBytes;
+        }
+        return pooled + RenderPipeline.memoryBytes() + BitmapProcessor.shapeMaskBytes();
+    }
+
+    /**
+     * Evicts the least recently used entries of a cache sized in kilobytes until about the
+     * given number of bytes is freed.
+     *
+     * @return The bytes actually freed.
+     */
+    static long trimCache(LruCache<?, ?> cache, long bytes) {
+        int before = cache.size();
+        long keep = before - Math.min(before, bytes / 1024);
+        // -1 also evicts entries that round to 0 KB
+        cache.trimToSize(keep <= 0 ? -1 : (int) keep);
+        return (before - cache.size()) * 1024L;
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565) return 2;
+        if (config == Bitmap.Config.ALPHA_8) return 1;
+        if (config == Bitmap.Config.RGBA_F16) return 8;
+        return 4;
+    }
+
+    private static synchronized long clearPool() {
+        long freed = pooledBytes;
+        for (Bitmap bitmap : pool) {
+            bitmap.recycle();
+        }
+        pool.clear();
+        pooledBytes = 0;
+        return freed;
+    }
+}
@@ -1,11 +1,18 @@
 package snoof.widget.photo; // Make sure this matches your PhotoPicker's package
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.graphics.RectF;
+import android.media.ExifInterface;
+import android.util.LruCache;
+import java.io.File;
 import java.io.OutputStream;
 import java.io.IOException;
 
@@ -15,6 +22,156 @@ import java.io.IOException;
  */
 public class BitmapProcessor {
 
+    // Coverage tables and scratch buffers are reused between calls on the same thread
+    private static final ThreadLocal<RoundedCornerKernel> cornerKernel =
+            ThreadLocal.withInitial(RoundedCornerKernel::new);
+
+    // Rows are masked in bands of about this many pixels, so the buffer stays small
+    private static final int MASK_BAND_PIXELS = 64 * 1024;
+    private static final ThreadLocal<int[]> maskBuffer = ThreadLocal.withInitial(() -> new int[MASK_BAND_PIXELS]);
+
+    // Shared by every widget, in kilobytes. A mask is a byte per pixel, so a small share of
+    // the bitmap budget holds the masks of many widget sizes.
+    private static final LruCache<String, ShapeMask> maskCache =
+            new LruCache<String, ShapeMask>(BitmapPool.shareKb(32)) {
+                @Override
+                protected int sizeOf(String key, ShapeMask mask) {
+                    return Math.max(1, mask.byteCount() / 1024);
+                }
+            };
+
+    /**
+     * Rounds the corners of a Bitmap in place, touching only the four corner squares.
+     * This is the fast path used for rendering; {@link #getRoundedCornerBitmap(Bitmap, float)}
+     * is kept as the reference implementation.
+     *
+     * @param bitmap The Bitmap to round. Mutable ARGB_8888 bitmaps are changed in place,
+     *               anything else is first copied and the original released to {@link BitmapPool}.
+     * @param roundPx The radius for the corners in pixels.
+     * @return The rounded Bitmap, or null if the input bitmap is null.
+     */
+    public static Bitmap roundCorners(Bitmap bitmap, float roundPx) {
+        if (bitmap == null) {
+            return null;
+        }
+
+        RoundedCornerKernel kernel = cornerKernel.get();
+        kernel.prepare(roundPx, bitmap.getWidth(), bitmap.getHeight());
+        if (kernel.isNoop()) {
+            return bitmap;
+        }
+
+        long start = RenderStats.begin(RenderStats.Stage.ROUND);
+
+        if (!bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            Bitmap copy = BitmapPool.obtain(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ARGB_8888);
+            new Canvas(copy).drawBitmap(bitmap, 0, 0, null);
+            BitmapPool.release(bitmap);
+            bitmap = copy;
+        }
+
+        bitmap.setHasAlpha(true);
+
+        // Only the corner squares are read back and written, the rest of the image is untouched
+        int[] buffer = kernel.scratch();
+        for (int corner = RoundedCornerKernel.TOP_LEFT; corner <= RoundedCornerKernel.BOTTOM_RIGHT; corner++) {
+            int x = kernel.cornerX(corner);
+            int y = kernel.cornerY(corner);
+            int width = kernel.cornerWidth(corner);
+            int height = kernel.cornerHeight(corner);
+            if (width == 0 || height == 0) continue;
+
+            bitmap.getPixels(buffer, 0, width, x, y, width, height);
+            kernel.applyCorner(buffer, 0, width, corner);
+            bitmap.setPixels(buffer, 0, width, x, y, width, height);
+        }
+        RenderStats.end(RenderStats.Stage.ROUND, start);
+        return bitmap;
+    }
+
+    /**
+     * Cuts a Bitmap to a shape in place. The rounded rectangle goes through
+     * {@link #roundCorners(Bitmap, float)}, which only touches the corners; every other
+     * shape applies its cached {@link ShapeMask} in one pass over the rows.
+     *
+     * @param bitmap The Bitmap to cut, handled like in {@link #roundCorners(Bitmap, float)}.
+     * @return The shaped Bitmap, or null if the input bitmap is null.
+     */
+    public static Bitmap applyShape(Bitmap bitmap, WidgetShape shape, int radiusPercent) {
+        if (bitmap == null) {
+            return null;
+        }
+        if (shape == WidgetShape.ROUNDED_RECT) {
+            return roundCorners(bitmap, ImageSizing.calculateCornerRadius(
+                    bitmap.getWidth(), bitmap.getHeight(), radiusPercent));
+        }
+
+        ShapeMask mask = getShapeMask(shape, bitmap.getWidth(), bitmap.getHeight(), radiusPercent);
+        long start = RenderStats.begin(RenderStats.Stage.ROUND);
+
+        if (!bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            Bitmap copy = BitmapPool.obtain(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ARGB_8888);
+            new Canvas(copy).drawBitmap(bitmap, 0, 0, null);
+            BitmapPool.release(bitmap);
+            bitmap = copy;
+        }
+        bitmap.setHasAlpha(true);
+        applyMask(mask, bitmap, bitmap);
+
+        RenderStats.end(RenderStats.Stage.ROUND, start);
+        return bitmap;
+    }
+
+    /**
+     * Returns the mask of a shape at a size, built on first use and then shared. Shapes that
+     * ignore the radius share one mask for every radius.
+     */
+    static ShapeMask getShapeMask(WidgetShape shape, int width, int height, int radiusPercent) {
+        int radius = shape.usesRadius() ? radiusPercent : 0;
+        String key = shape.key() + "_" + width + "x" + height + "_r" + radius;
+        ShapeMask mask = maskCache.get(key);
+        if (mask == null) {
+            // Two threads may both build a missing mask, the results are identical
+            mask = ShapeMask.create(shape, width, height, radius);
+            maskCache.put(key, mask);
+        }
+        return mask;
+    }
+
+    /**
+     * Drops shape masks, least recently used first, to free about the given number of bytes.
+     * See {@link BitmapPool}.
+     *
+     * @return The bytes freed.
+     */
+    static long trimShapeMasks(long bytes) {
+        return BitmapPool.trimCache(maskCache, bytes);
+    }
+
+    static long shapeMaskBytes() {
+        return maskCache.size() * 1024L;
+    }
+
+    /**
+     * Writes source through the mask into target, band by band. Both are the mask's size and
+     * may be the same Bitmap.
+     */
+    static void applyMask(ShapeMask mask, Bitmap source, Bitmap target) {
+        int width = mask.width;
+        int bandRows = Math.max(1, MASK_BAND_PIXELS / width);
+        int[] buffer = maskBuffer.get();
+        if (buffer.length < bandRows * width) {
+            buffer = new int[bandRows * width];
+            maskBuffer.set(buffer);
+        }
+        for (int y = 0; y < mask.height; y += bandRows) {
+            int rows = Math.min(bandRows, mask.height - y);
+            source.getPixels(buffer, 0, width, 0, y, width, rows);
+            mask.apply(buffer, 0, width, y, rows);
+            target.setPixels(buffer, 0, width, 0, y, width, rows);
+        }
+    }
+
     /**
      * Creates a new Bitmap with rounded corners from the given source Bitmap.
      *
@@ -97,4 +254,304 @@ public class BitmapProcessor {
             throw new IOException("Failed to create rounded bitmap.");
         }
     }
+
+    /**
+     * The pixel format to decode a render in. A rectangle without rounding has nothing
+     * transparent, so the photo can be decoded as RGB_565 at half the memory and the corner
+     * pass skipped. Every other shape cuts pixels away and needs alpha.
+     */
+    public static Bitmap.Config renderConfig(WidgetShape shape, int radiusPercent) {
+        return shape == WidgetShape.ROUNDED_RECT && radiusPercent <= 0
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Decodes an image file at roughly the size it will be displayed at. The bounds are read
+     * first so the decoder can subsample, then the result is scaled down to fit the box.
+     *
+     * @param file The encoded image on disk.
+     * @param reqWidth Width of the box the image will be shown in, in pixels.
+     * @param reqHeight Height of the box the image will be shown in, in pixels.
+     * @return The decoded Bitmap, or null if the file could not be decoded.
+     */
+    public static Bitmap decodeSampledBitmap(File file, int reqWidth, int reqHeight) {
+        return decodeSampledBitmap(file, reqWidth, reqHeight, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Same as {@link #decodeSampledBitmap(File, int, int)} in the given pixel format.
+     * RGB_565 is only honoured for formats that cannot carry alpha, so a transparent PNG
+     * still decodes with its transparency.
+     */
+    public static Bitmap decodeSampledBitmap(File file, int reqWidth, int reqHeight, Bitmap.Config config) {
+        long start = RenderStats.begin(RenderStats.Stage.DECODE);
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+
+            // The box is given upright, sample against it as the pixels are stored
+            int orientation = readOrientation(file);
+            boolean swap = ImageSizing.swapsAxes(orientation);
+            options.inSampleSize = ImageSizing.calculateInSampleSize(options.outWidth, options.outHeight,
+                    swap ? reqHeight : reqWidth, swap ? reqWidth : reqHeight);
+            options.inJustDecodeBounds = false;
+            options.inMutable = true;
+            options.inPreferredConfig = effectiveConfig(config, options.outMimeType);
+            prepareDecode(options, options.outWidth, options.outHeight);
+            Bitmap sampled = decodeFile(file, options);
+            if (sampled != null) RenderStats.recordDecoded(sampled.getAllocationByteCount());
+            return scaleAndOrient(sampled, reqWidth, reqHeight, orientation);
+        } finally {
+            RenderStats.end(RenderStats.Stage.DECODE, start);
+        }
+    }
+
+    /**
+     * Decodes only the part of an image selected by a crop, at roughly the size it will be
+     * displayed at. The region is read with BitmapRegionDecoder, so pixels outside of it are
+     * never decoded; for a panorama on a square widget that is most of the photo.
+     * With crop mode off this is the same as {@link #decodeSampledBitmap(File, int, int, Bitmap.Config)}.
+     *
+     * @param reqWidth Width of the box the region will be shown in. Together with reqHeight
+     *                 this also gives the aspect ratio of the region.
+     * @return The decoded region, or null if the file could not be decoded.
+     */
+    public static Bitmap decodeCroppedBitmap(File file, CropSelection crop, int reqWidth, int reqHeight,
+                                             Bitmap.Config config) {
+        if (!crop.enabled) {
+            return decodeSampledBitmap(file, reqWidth, reqHeight, config);
+        }
+
+        long start = RenderStats.begin(RenderStats.Stage.DECODE);
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+
+            // The crop is chosen on the upright photo, the decoder reads the stored pixels
+            int orientation = readOrientation(file);
+            boolean swap = ImageSizing.swapsAxes(orientation);
+            int[] region = new int[4];
+            crop.computeRegion(swap ? options.outHeight : options.outWidth,
+                    swap ? options.outWidth : options.outHeight, reqWidth, reqHeight, region);
+            ImageSizing.mapRegionToRaw(orientation, options.outWidth, options.outHeight, region);
+            Rect rect = new Rect(region[0], region[1], region[2], region[3]);
+
+            options.inSampleSize = ImageSizing.calculateInSampleSize(rect.width(), rect.height(),
+                    swap ? reqHeight : reqWidth, swap ? reqWidth : reqHeight);
+            options.inJustDecodeBounds = false;
+            options.inMutable = true;
+            options.inPreferredConfig = effectiveConfig(config, options.outMimeType);
+            prepareDecode(options, rect.width(), rect.height());
+
+            Bitmap decoded;
+            try {
+                BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(file.getAbsolutePath());
+                try {
+                    decoded = decoder.decodeRegion(rect, options);
+                } catch (IllegalArgumentException e) {
+                    // The pooled bitmap did not suit the decoder after all
+                    dropInBitmap(options);
+                    decoded = decoder.decodeRegion(rect, options);
+                } finally {
+                    decoder.recycle();
+                }
+                releaseUnused(options, decoded);
+            } catch (IOException e) {
+                // Formats the region decoder cannot read, such as GIF: decode subsampled and cut
+                decoded = cropSampled(file, options, rect);
+            }
+
+            if (decoded != null) RenderStats.recordDecoded(decoded.getAllocationByteCount());
+            return scaleAndOrient(decoded, reqWidth, reqHeight, orientation);
+        } finally {
+            RenderStats.end(RenderStats.Stage.DECODE, start);
+        }
+    }
+
+    private static Bitmap.Config effectiveConfig(Bitmap.Config config, String mimeType) {
+        if (config == Bitmap.Config.RGB_565 && !"image/jpeg".equals(mimeType) && !"image/heif".equals(mimeType)) {
+            // PNG, WebP and GIF may be transparent, keep their alpha
+            return Bitmap.Config.ARGB_8888;
+        }
+        return config;
+    }
+
+    private static Bitmap cropSampled(File file, BitmapFactory.Options options, Rect rect) {
+        // The whole photo is decoded this time, at a sample size that fits the budget
+        dropInBitmap(options);
+        prepareDecode(options, options.outWidth, options.outHeight);
+        Bitmap sampled = decodeFile(file, options);
+        if (sampled == null) return null;
+
+        int sample = options.inSampleSize;
+        int left = Math.min(rect.left / sample, sampled.getWidth() - 1);
+        int top = Math.min(rect.top / sample, sampled.getHeight() - 1);
+        int width = Math.max(1, Math.min(rect.width() / sample, sampled.getWidth() - left));
+        int height = Math.max(1, Math.min(rect.height() / sample, sampled.getHeight() - top));
+
+        Bitmap cropped = Bitmap.createBitmap(sampled, left, top, width, height);
+        if (cropped != sampled) BitmapPool.release(sampled);
+        return cropped;
+    }
+
+    /**
+     * Settles the sample size of a decode of a width x height image so the result fits the
+     * bitmap budget, then either hands the decoder a pooled bitmap to decode into or makes
+     * room for a new one. See {@link BitmapPool}.
+     */
+    private static void prepareDecode(BitmapFactory.Options options, int width, int height) {
+        int sample = BitmapPool.fitSampleSize(width, height, Math.max(1, options.inSampleSize),
+                options.inPreferredConfig);
+        options.inSampleSize = sample;
+        // The decoder rounds subsampled sizes up
+        int outWidth = (width + sample - 1) / sample;
+        int outHeight = (height + sample - 1) / sample;
+        options.inBitmap = BitmapPool.get(outWidth, outHeight, options.inPreferredConfig);
+        if (options.inBitmap == null) {
+            BitmapPool.reserve((long) outWidth * outHeight
+                    * BitmapPool.bytesPerPixel(options.inPreferredConfig));
+        }
+    }
+
+    /**
+     * Decodes a file with options from {@link #prepareDecode}. A pooled bitmap the decoder
+     * turns down, for instance because the file is in a different format than expected, only
+     * costs a second decode into a new one.
+     */
+    private static Bitmap decodeFile(File file, BitmapFactory.Options options) {
+        Bitmap decoded;
+        try {
+            decoded = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        } catch (IllegalArgumentException e) {
+            dropInBitmap(options);
+            decoded = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        }
+        releaseUnused(options, decoded);
+        return decoded;
+    }
+
+    private static void dropInBitmap(BitmapFactory.Options options) {
+        BitmapPool.release(options.inBitmap);
+        options.inBitmap = null;
+    }
+
+    private static void releaseUnused(BitmapFactory.Options options, Bitmap decoded) {
+        if (options.inBitmap != null && options.inBitmap != decoded) {
+            dropInBitmap(options);
+        }
+        options.inBitmap = null;
+    }
+
+    /**
+     * Returns the EXIF thumbnail of an image file, turned upright, or null if it has none.
+     * Typically around 160 x 120 and readable in a millisecond or two, so it can be shown
+     * while the photo itself decodes.
+     */
+    public static Bitmap decodeExifThumbnail(File file) {
+        try {
+            ExifInterface exif = new ExifInterface(file);
+            if (!exif.hasThumbnail()) return null;
+            Bitmap thumbnail = exif.getThumbnailBitmap();
+            int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+            return scaleAndOrient(thumbnail, Integer.MAX_VALUE, Integer.MAX_VALUE, orientation);
+        } catch (IOException | RuntimeException e) {
+            // A broken EXIF block only costs the early preview
+            return null;
+        }
+    }
+
+    /**
+     * Reads the EXIF orientation of an image file, ORIENTATION_NORMAL when it has none.
+     */
+    static int readOrientation(File file) {
+        try {
+            return new ExifInterface(file).getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException | RuntimeException e) {
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    /**
+     * Scales a freshly decoded Bitmap to fit inside reqWidth x reqHeight and turns it upright
+     * in the same pass, so a rotated photo never needs a separate full size rotate. The box
+     * is upright. The source is released to {@link BitmapPool} when a new Bitmap is made.
+     */
+    private static Bitmap scaleAndOrient(Bitmap bitmap, int reqWidth, int reqHeight, int orientation) {
+        if (bitmap == null) {
+            return null;
+        }
+        if (orientation <= ExifInterface.ORIENTATION_NORMAL || orientation > ExifInterface.ORIENTATION_ROTATE_270) {
+            return scaleToFit(bitmap, reqWidth, reqHeight);
+        }
+
+        boolean swap = ImageSizing.swapsAxes(orientation);
+        float scale = ImageSizing.calculateTargetScale(swap ? bitmap.getHeight() : bitmap.getWidth(),
+                swap ? bitmap.getWidth() : bitmap.getHeight(), reqWidth, reqHeight);
+
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(-90);
+                break;
+        }
+
+        Bitmap oriented = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (oriented != bitmap) {
+            BitmapPool.release(bitmap);
+        }
+        return oriented;
+    }
+
+    /**
+     * Scales a Bitmap down so it fits inside reqWidth x reqHeight. The source is released to
+     * {@link BitmapPool} when a scaled copy is made; it is returned as is when it already fits.
+     */
+    public static Bitmap scaleToFit(Bitmap bitmap, int reqWidth, int reqHeight) {
+        if (bitmap == null) {
+            return null;
+        }
+
+        float scale = ImageSizing.calculateTargetScale(bitmap.getWidth(), bitmap.getHeight(), reqWidth, reqHeight);
+        if (scale >= 1f) {
+            return bitmap;
+        }
+
+        int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        if (scaled != bitmap) {
+            BitmapPool.release(bitmap);
+        }
+        return scaled;
+    }
 }
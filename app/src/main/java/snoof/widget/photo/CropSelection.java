@@ -0,0 +1,93 @@
+package snoof.widget.photo;
+
+/**
+ * The part of a photo a widget shows when crop mode is on: a centre point as a fraction of
+ * the photo size and a zoom factor. The visible rectangle always has the widget's aspect
+ * ratio and fills it, so only that rectangle needs to be decoded.
+ * Immutable, and free of Android types so it can be run on a plain JVM.
+ */
+public final class CropSelection {
+
+    public static final float MAX_ZOOM = 8f;
+
+    /** Shows the whole photo, the behaviour before crop mode existed. */
+    public static final CropSelection NONE = new CropSelection(false, 0.5f, 0.5f, 1f);
+
+    public final boolean enabled;
+    public final float centerX;
+    public final float centerY;
+    public final float zoom;
+
+    public CropSelection(boolean enabled, float centerX, float centerY, float zoom) {
+        this.enabled = enabled;
+        this.centerX = clamp(centerX, 0f, 1f);
+        this.centerY = clamp(centerY, 0f, 1f);
+        this.zoom = clamp(zoom, 1f, MAX_ZOOM);
+    }
+
+    public CropSelection withEnabled(boolean enabled) {
+        return new CropSelection(enabled, centerX, centerY, zoom);
+    }
+
+    /**
+     * Moves the centre by a fraction of the photo size.
+     */
+    public CropSelection panBy(float dx, float dy) {
+        return new CropSelection(enabled, centerX + dx, centerY + dy, zoom);
+    }
+
+    public CropSelection zoomBy(float factor) {
+        return new CropSelection(enabled, centerX, centerY, zoom * factor);
+    }
+
+    /**
+     * Computes the rectangle of the source to show in a target of the given size.
+     * With crop mode off this is the whole source. Otherwise it is the largest rectangle
+     * with the target's aspect ratio, divided by the zoom, centred on the selection and
+     * shifted back inside the source where needed.
+     *
+     * @param out Receives left, top, right and bottom, in source pixels.
+     */
+    public void computeRegion(int srcWidth, int srcHeight, int targetWidth, int targetHeight, int[] out) {
+        if (!enabled || targetWidth <= 0 || targetHeight <= 0) {
+            out[0] = 0;
+            out[1] = 0;
+            out[2] = srcWidth;
+            out[3] = srcHeight;
+            return;
+        }
+
+        float aspect = targetWidth / (float) targetHeight;
+        float width = srcWidth;
+        float height = srcHeight;
+        if (srcWidth / (float) srcHeight > aspect) {
+            width = srcHeight * aspect;
+        } else {
+            height = srcWidth / aspect;
+        }
+        int regionWidth = Math.max(1, Math.min(srcWidth, Math.round(width / zoom)));
+        int regionHeight = Math.max(1, Math.min(srcHeight, Math.round(height / zoom)));
+
+        int left = Math.round(centerX * srcWidth - regionWidth / 2f);
+        int top = Math.round(centerY * srcHeight - regionHeight / 2f);
+        left = Math.max(0, Math.min(left, srcWidth - regionWidth));
+        top = Math.max(0, Math.min(top, srcHeight - regionHeight));
+
+        out[0] = left;
+        out[1] = top;
+        out[2] = left + regionWidth;
+        out[3] = top + regionHeight;
+    }
+
+    /**
+     * A short file name safe description, part of the render cache key.
+     */
+    public String key() {
+        if (!enabled) return "full";
+        return "c" + Math.round(centerX * 1000) + "_" + Math.round(centerY * 1000) + "_" + Math.round(zoom * 100);
+    }
+
+    private static float clamp(float value, float min, float max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,110 @@
+package snoof.widget.photo;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Picks how a Bitmap is written to disk instead of always using PNG at quality 100,
+ * which is both the slowest encode and the largest file for photos.
+ * The choice depends on a configurable {@link Policy} and on whether the image has
+ * transparent corners. The extension of the written file records the format that was used.
+ */
+public final class ImageEncoder {
+
+    private static final String PREFS_NAME = "PhotoWidgetPrefs";
+    private static final String PREF_POLICY_KEY = "encoding_policy";
+
+    // Read on every render written, kept in memory once read from the preferences
+    private static volatile Policy policy;
+
+    public enum Policy {
+        /** Shortest encode time, used for renders that are rebuilt on every cache miss. */
+        LATENCY,
+        /** Fewest bytes on disk, at the cost of a slower encode. */
+        SIZE,
+        /** Pixel exact output. */
+        LOSSLESS
+    }
+
+    /**
+     * A format and quality pair, plus the file extension that records it. A new extension
+     * also goes into {@link RenderKey#EXTENSIONS}, or the cache will not find the file.
+     */
+    public enum Encoding {
+        JPEG(Bitmap.CompressFormat.JPEG, 90, ".jpg"),
+        WEBP_FAST(Bitmap.CompressFormat.WEBP_LOSSY, 85, ".webp"),
+        WEBP_SMALL(Bitmap.CompressFormat.WEBP_LOSSY, 75, ".webp"),
+        // For lossless WebP the quality is the effort spent on compression
+        WEBP_LOSSLESS(Bitmap.CompressFormat.WEBP_LOSSLESS, 75, ".webp");
+
+        public final Bitmap.CompressFormat format;
+        public final int quality;
+        public final String extension;
+
+        Encoding(Bitmap.CompressFormat format, int quality, String extension) {
+            this.format = format;
+            this.quality = quality;
+            this.extension = extension;
+        }
+    }
+
+    private ImageEncoder() {}
+
+    /**
+     * Chooses the encoding for a bitmap. Opaque images go to JPEG when speed matters, since
+     * there is no alpha to keep. Rounded images need alpha and use lossy WebP, which keeps
+     * it at a fraction of the PNG size and encode time.
+     */
+    public static Encoding choose(Bitmap bitmap, Policy policy) {
+        switch (policy) {
+            case LOSSLESS:
+                return Encoding.WEBP_LOSSLESS;
+            case SIZE:
+                return Encoding.WEBP_SMALL;
+            case LATENCY:
+            default:
+                return bitmap.hasAlpha() ? Encoding.WEBP_FAST : Encoding.JPEG;
+        }
+    }
+
+    /**
+     * Encodes the bitmap with the encoding chosen for the policy.
+     *
+     * @return The encoding that was used, so the caller can name the file after it.
+     * @throws IOException If the bitmap could not be compressed.
+     */
+    public static Encoding encode(Bitmap bitmap, Policy policy, OutputStream out) throws IOException {
+        Encoding encoding = choose(bitmap, policy);
+        if (!bitmap.compress(encoding.format, encoding.quality, out)) {
+            throw new IOException("Failed to encode as " + encoding);
+        }
+        return encoding;
+    }
+
+    /**
+     * Returns the configured policy, LATENCY unless changed.
+     */
+    public static Policy getPolicy(Context context) {
+        Policy cached = policy;
+        if (cached != null) return cached;
+
+        String name = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getString(PREF_POLICY_KEY, Policy.LATENCY.name());
+        try {
+            cached = Policy.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            cached = Policy.LATENCY;
+        }
+        policy = cached;
+        return cached;
+    }
+
+    public static void setPolicy(Context context, Policy policy) {
+        ImageEncoder.policy = policy;
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().putString(PREF_POLICY_KEY, policy.name()).apply();
+    }
+}
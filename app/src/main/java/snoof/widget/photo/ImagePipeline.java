@@ -0,0 +1,153 @@
+package snoof.widget.photo;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the picker's image work (pick, quick preview, decode, save, widget update) on a
+ * background thread. A job is a sequence of stages. Submitting a new job cancels the one
+ * before it, and a cancelled job stops at its next stage boundary; a queued job waits for it
+ * instead. Once a job starts committing it always runs to the end, so a widget is never left
+ * half configured. Rounding and encoding happen inside the save, as part of the widget render.
+ * Results are delivered on the main thread and dropped if the job was cancelled or the
+ * pipeline was shut down in the meantime. A job can also publish early previews, which are
+ * delivered the same way before its result.
+ */
+class ImagePipeline {
+
+    private static final String TAG = "ImagePipeline";
+
+    enum Stage { PICK, PREVIEW, DECODE, SAVE, UPDATE }
+
+    interface Job<T> {
+        T run(Task task) throws Exception;
+    }
+
+    interface Callback<T> {
+        void onResult(T result);
+
+        void onError(Exception e);
+
+        /**
+         * Receives a quick, lower quality image published by the job while it keeps working.
+         * The callback owns it.
+         */
+        default void onPreview(Bitmap preview) {}
+    }
+
+    static final class Task {
+        private final ImagePipeline pipeline;
+        private final Callback<?> callback;
+        private volatile boolean cancelled;
+        private volatile boolean committing;
+
+        private Task(ImagePipeline pipeline, Callback<?> callback) {
+            this.pipeline = pipeline;
+            this.callback = callback;
+        }
+
+        /**
+         * Hands an early image to the callback's onPreview on the main thread.
+         */
+        void publish(Bitmap preview) {
+            if (preview == null || cancelled) return;
+            pipeline.mainHandler.post(() -> {
+                if (!pipeline.shutdown && !cancelled) callback.onPreview(preview);
+            });
+        }
+
+        /**
+         * Marks the start of a stage. Throws CancellationException if the job was cancelled
+         * and has not started committing yet.
+         */
+        void enter(Stage stage) {
+            if (cancelled && !committing) {
+                throw new CancellationException("Cancelled before " + stage);
+            }
+        }
+
+        /**
+         * Marks the start of a stage that changes saved state. From here on the job runs to
+         * the end even if it gets cancelled.
+         */
+        void commit(Stage stage) {
+            enter(stage);
+            committing = true;
+        }
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(() -> {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        r.run();
+    }, "SnoofImagePipeline"));
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private Task current;
+    private boolean shutdown;
+
+    /**
+     * Cancels the current job and queues a new one. Must be called from the main thread.
+     */
+    <T> void submit(Job<T> job, Callback<T> callback) {
+        if (shutdown) return;
+        cancel();
+
+        Task task = new Task(this, callback);
+        current = task;
+        execute(task, job, callback);
+    }
+
+    /**
+     * Queues a job behind the current one without cancelling it, for work that must not cost
+     * the job before it its result. A queued job is not cancelled by later submits either.
+     * Must be called from the main thread.
+     */
+    <T> void queue(Job<T> job, Callback<T> callback) {
+        if (shutdown) return;
+        execute(new Task(this, callback), job, callback);
+    }
+
+    private <T> void execute(Task task, Job<T> job, Callback<T> callback) {
+        executor.execute(() -> {
+            try {
+                T result = job.run(task);
+                mainHandler.post(() -> {
+                    if (!shutdown && !task.cancelled) callback.onResult(result);
+                });
+            } catch (CancellationException e) {
+                Log.d(TAG, e.getMessage());
+            } catch (Exception e) {
+                mainHandler.post(() -> {
+                    if (!shutdown && !task.cancelled) callback.onError(e);
+                });
+            }
+        });
+    }
+
+    /**
+     * Cancels the current job, if any. Its result will not be delivered.
+     */
+    void cancel() {
+        if (current != null) {
+            current.cancelled = true;
+            current = null;
+        }
+    }
+
+    /**
+     * Cancels the current job and stops accepting new ones. A job that is already committing
+     * still finishes in the background. Must be called from the main thread.
+     */
+    void shutdown() {
+        cancel();
+        shutdown = true;
+        executor.shutdown();
+    }
+}
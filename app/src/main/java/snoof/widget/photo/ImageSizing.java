@@ -0,0 +1,114 @@
+package snoof.widget.photo;
+
+/**
+ * Size math used to decode photos at the resolution they are actually shown at,
+ * instead of the resolution the camera produced them at.
+ * This class has no Android dependencies so it can be run on a plain JVM.
+ */
+public final class ImageSizing {
+
+    private ImageSizing() {}
+
+    /**
+     * Picks the largest power-of-two sample size for BitmapFactory that still leaves the
+     * decoded image big enough to fill reqWidth x reqHeight after it is scaled to fit.
+     *
+     * @param srcWidth Width of the encoded image in pixels.
+     * @param srcHeight Height of the encoded image in pixels.
+     * @param reqWidth Width of the box the image has to fit in.
+     * @param reqHeight Height of the box the image has to fit in.
+     * @return A power of two >= 1, suitable for BitmapFactory.Options.inSampleSize.
+     */
+    public static int calculateInSampleSize(int srcWidth, int srcHeight, int reqWidth, int reqHeight) {
+        if (srcWidth <= 0 || srcHeight <= 0 || reqWidth <= 0 || reqHeight <= 0) {
+            return 1;
+        }
+
+        int inSampleSize = 1;
+        // When fitting inside the box only one side ends up touching it, so keep halving
+        // while either side would still be at least as large as the box.
+        while (srcWidth / (inSampleSize * 2) >= reqWidth || srcHeight / (inSampleSize * 2) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * Returns the scale factor that makes an image fit inside reqWidth x reqHeight while
+     * keeping its aspect ratio. Images are never scaled up, so the result is at most 1.
+     */
+    public static float calculateTargetScale(int width, int height, int reqWidth, int reqHeight) {
+        if (width <= 0 || height <= 0 || reqWidth <= 0 || reqHeight <= 0) {
+            return 1f;
+        }
+        float scale = Math.min(reqWidth / (float) width, reqHeight / (float) height);
+        return Math.min(scale, 1f);
+    }
+
+    /**
+     * Whether an EXIF orientation (the TAG_ORIENTATION values 1 to 8) turns the image by a
+     * quarter, so that the displayed width is the stored height.
+     */
+    public static boolean swapsAxes(int orientation) {
+        return orientation >= 5 && orientation <= 8;
+    }
+
+    /**
+     * Maps a region given in displayed coordinates, after the EXIF orientation is applied,
+     * back to the coordinates of the image as it is stored. Used to region decode a crop the
+     * user chose on the upright image.
+     *
+     * @param orientation EXIF orientation, 1 to 8; anything else is treated as upright.
+     * @param rawWidth Width of the image as stored.
+     * @param rawHeight Height of the image as stored.
+     * @param region Left, top, right and bottom; replaced with the stored region.
+     */
+    public static void mapRegionToRaw(int orientation, int rawWidth, int rawHeight, int[] region) {
+        int left = region[0];
+        int top = region[1];
+        int right = region[2];
+        int bottom = region[3];
+        int x0, y0, x1, y1;
+        switch (orientation) {
+            case 2: // flip horizontal
+                x0 = rawWidth - left; y0 = top; x1 = rawWidth - right; y1 = bottom;
+                break;
+            case 3: // rotate 180
+                x0 = rawWidth - left; y0 = rawHeight - top; x1 = rawWidth - right; y1 = rawHeight - bottom;
+                break;
+            case 4: // flip vertical
+                x0 = left; y0 = rawHeight - top; x1 = right; y1 = rawHeight - bottom;
+                break;
+            case 5: // transpose
+                x0 = top; y0 = left; x1 = bottom; y1 = right;
+                break;
+            case 6: // rotate 90 clockwise
+                x0 = top; y0 = rawHeight - left; x1 = bottom; y1 = rawHeight - right;
+                break;
+            case 7: // transverse
+                x0 = rawWidth - top; y0 = rawHeight - left; x1 = rawWidth - bottom; y1 = rawHeight - right;
+                break;
+            case 8: // rotate 270 clockwise
+                x0 = rawWidth - top; y0 = left; x1 = rawWidth - bottom; y1 = right;
+                break;
+            default:
+                return;
+        }
+        region[0] = Math.min(x0, x1);
+        region[1] = Math.min(y0, y1);
+        region[2] = Math.max(x0, x1);
+        region[3] = Math.max(y0, y1);
+    }
+
+    /**
+     * Turns a corner radius percentage into pixels. 100% gives a full circle, whose radius
+     * is half of the shortest side.
+     */
+    public static float calculateCornerRadius(int width, int height, int percent) {
+        if (width <= 0 || height <= 0) {
+            return 0f;
+        }
+        float maxRadius = Math.min(width, height) / 2.0f;
+        return (percent / 100.0f) * maxRadius;
+    }
+}
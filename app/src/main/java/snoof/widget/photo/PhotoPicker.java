@@ -2,16 +2,27 @@ package snoof.widget.photo;
 
 import android.Manifest;
 import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.content.ComponentCallbacks2;
 import android.content.ContextWrapper;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
 import android.os.Bundle;
+import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.Size;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.SeekBar;
+import android.widget.Spinner;
+import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -25,60 +36,166 @@ import androidx.core.view.ViewCompat;
 import androidx.core.view.WindowInsetsCompat;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 public class PhotoPicker extends AppCompatActivity implements SeekBar.OnSeekBarChangeListener {
 
     private static final String TAG = "PhotoPicker";
-    private static final String PREFS_NAME = "PhotoWidgetPrefs";
-    private static final String PREF_RADIUS_KEY = "radius_percent_";
+    // Height of the preview ImageView in photo_picker_layout
+    private static final int PREVIEW_HEIGHT_DP = 400;
 
     private int mAppWidgetId = AppWidgetManager.INVALID_APPWIDGET_ID;
 
     private Button btn_pickmedia;
+    private Button btn_pickalbum;
     private ImageView view_pickmedia;
     private SeekBar radiusSeekBar;
     private TextView radiusLabelText;
+    private Switch cropSwitch;
+    private Spinner shapeSpinner;
 
+    // Screen sized photo from the render pipeline, held while crop mode needs it for gestures.
+    // Shared with the pipeline's memory, so it is dropped rather than recycled.
     private Bitmap originalImageBitmap;
+    // What the preview view currently shows, either the renderer's output or restingFrame
     private Bitmap imgBitmap;
+    // HARDWARE copy of the last frame, shown while the preview is idle
+    private Bitmap restingFrame;
     private File imgDir;
 
+    private final PreviewRenderer previewRenderer = new PreviewRenderer();
+    private boolean previewFramePending = false;
+    private final Runnable previewFrame = () -> {
+        // Renders whatever the slider is at by now, positions in between are simply skipped
+        previewFramePending = false;
+        refreshPreview();
+    };
+
     private int currentRadiusPercent = 50;
+    private WidgetShape currentShape = WidgetShape.ROUNDED_RECT;
+    private CropSelection cropSelection = CropSelection.NONE;
+
+    private Size widgetSize;
+    // Largest preview size, and the box with the widget's aspect ratio the crop is shown in
+    private int[] previewBounds;
+    private int[] previewCropBox;
+    private final int[] cropRegion = new int[4];
+
+    private ScaleGestureDetector scaleDetector;
+    private float lastTouchX;
+    private float lastTouchY;
+    private boolean cropFramePending = false;
+    private final Runnable cropFrame = () -> {
+        cropFramePending = false;
+        refreshCropPreview();
+    };
+
+    private final ImagePipeline pipeline = new ImagePipeline();
 
     ActivityResultLauncher<PickVisualMediaRequest> pickVisualMedia =
             registerForActivityResult(new ActivityResultContracts.PickVisualMedia(), uri -> {
                 if (uri != null) {
-                    try {
-                        InputStream inputStream = getContentResolver().openInputStream(uri);
-                        if (originalImageBitmap != null && !originalImageBitmap.isRecycled()) {
-                            originalImageBitmap.recycle();
-                        }
-                        originalImageBitmap = BitmapFactory.decodeStream(inputStream);
-                        if (inputStream != null) inputStream.close();
-
-                        if (originalImageBitmap != null) {
-                            refreshPreview();
-                            saveRadiusPercentage(currentRadiusPercent);
-                            saveImageToInternalStorage(mAppWidgetId);
-
-                            AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(this);
-                            PhotoPickerWidgetProvider.updateAppWidget(this, appWidgetManager, mAppWidgetId);
-
-                            setResult(RESULT_OK);
-                            finish();
-                        } else {
-                            Toast.makeText(this, "Failed to decode image.", Toast.LENGTH_SHORT).show();
-                        }
-                    } catch (IOException e) {
-                        Log.e(TAG, "Error: " + e.getMessage());
-                    }
+                    // A new photo starts centred, the crop mode itself is kept
+                    cropSelection = new CropSelection(cropSelection.enabled, 0.5f, 0.5f, 1f);
+                    final int radiusPercent = currentRadiusPercent;
+                    final WidgetShape shape = currentShape;
+                    final CropSelection crop = cropSelection;
+                    final int bound = getDecodeBound();
+                    final Context appContext = getApplicationContext();
+
+                    // A new pick replaces any load still running
+                    pipeline.submit(task -> {
+                        // Keep the untouched photo, rounding only happens when rendering
+                        task.enter(ImagePipeline.Stage.PICK);
+                        String hash = SourceImageStore.importFromUri(appContext, uri);
+                        File sourceFile = SourceImageStore.getFileForHash(appContext, hash);
+
+                        task.enter(ImagePipeline.Stage.PREVIEW);
+                        task.publish(decodeQuickPreview(sourceFile, null, crop));
+                        task.enter(ImagePipeline.Stage.DECODE);
+                        LoadedImage image = decodeImage(sourceFile, bound, crop);
+                        if (image == null) return null;
+
+                        task.commit(ImagePipeline.Stage.SAVE);
+                        // The widget render reuses the decode above, scale, round and encode happen in here
+                        saveAndUpdate(appContext, mAppWidgetId, radiusPercent, shape, crop, hash);
+                        return image;
+                    }, pickCallback());
                 }
             });
 
+    // Album mode, the widget rotates through the picked photos
+    ActivityResultLauncher<PickVisualMediaRequest> pickAlbum =
+            registerForActivityResult(new ActivityResultContracts.PickMultipleVisualMedia(AlbumRotator.MAX_PHOTOS), uris -> {
+                if (uris == null || uris.isEmpty()) return;
+
+                cropSelection = new CropSelection(cropSelection.enabled, 0.5f, 0.5f, 1f);
+                final int radiusPercent = currentRadiusPercent;
+                final WidgetShape shape = currentShape;
+                final CropSelection crop = cropSelection;
+                final int bound = getDecodeBound();
+                final Context appContext = getApplicationContext();
+
+                pipeline.submit(task -> {
+                    List<String> hashes = new ArrayList<>();
+                    for (Uri uri : uris) {
+                        task.enter(ImagePipeline.Stage.PICK);
+                        hashes.add(SourceImageStore.importFromUri(appContext, uri));
+                    }
+                    File firstFile = SourceImageStore.getFileForHash(appContext, hashes.get(0));
+
+                    task.enter(ImagePipeline.Stage.PREVIEW);
+                    task.publish(decodeQuickPreview(firstFile, null, crop));
+                    task.enter(ImagePipeline.Stage.DECODE);
+                    LoadedImage image = decodeImage(firstFile, bound, crop);
+                    if (image == null) return null;
+
+                    task.commit(ImagePipeline.Stage.SAVE);
+                    saveSettings(appContext, mAppWidgetId, radiusPercent, shape, crop);
+                    AlbumRotator.setAlbum(appContext, mAppWidgetId, hashes);
+                    deleteLegacyFile(appContext, mAppWidgetId);
+                    RenderCache.invalidate(appContext, mAppWidgetId);
+
+                    task.enter(ImagePipeline.Stage.UPDATE);
+                    AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(appContext);
+                    PhotoPickerWidgetProvider.updateAppWidget(appContext, appWidgetManager, mAppWidgetId);
+                    // Have the next frames ready before the first tick
+                    AlbumRotator.prefetchAsync(appContext, appWidgetManager, mAppWidgetId);
+                    return image;
+                }, pickCallback());
+            });
+
+    /**
+     * Shows the picked photo once the widget is configured and closes the picker.
+     */
+    private ImagePipeline.Callback<LoadedImage> pickCallback() {
+        return new ImagePipeline.Callback<LoadedImage>() {
+            @Override
+            public void onResult(LoadedImage image) {
+                if (image == null) {
+                    Toast.makeText(PhotoPicker.this, "Failed to decode image.", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                setPreviewSource(image);
+
+                // The widget update is committed by now
+                setResult(RESULT_OK);
+                finish();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "Error: " + e.getMessage());
+            }
+
+            @Override
+            public void onPreview(Bitmap preview) {
+                showRestingFrame(preview);
+            }
+        };
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -104,15 +221,53 @@ public class PhotoPicker extends AppCompatActivity implements SeekBar.OnSeekBarC
 
         imgDir = new ContextWrapper(getApplicationContext()).getDir("imgDir", MODE_PRIVATE);
         btn_pickmedia = findViewById(R.id.pickmediabutton);
+        btn_pickalbum = findViewById(R.id.pickalbumbutton);
         view_pickmedia = findViewById(R.id.pickmediaview);
         radiusSeekBar = findViewById(R.id.radius_seekbar);
         radiusLabelText = findViewById(R.id.radius_label_text);
+        cropSwitch = findViewById(R.id.crop_switch);
+        shapeSpinner = findViewById(R.id.shape_spinner);
+
+        widgetSize = PhotoPickerWidgetProvider.getWidgetSizePx(this, AppWidgetManager.getInstance(this), mAppWidgetId);
+        previewBounds = getPreviewBounds();
+        previewCropBox = getPreviewCropBox();
 
         loadRadiusPercentage();
         radiusSeekBar.setProgress(currentRadiusPercent);
         updateRadiusText(currentRadiusPercent);
 
+        loadShape();
+        setUpShapeSpinner();
+
+        loadCropSelection();
+        cropSwitch.setChecked(cropSelection.enabled);
+        cropSwitch.setOnCheckedChangeListener((button, checked) -> {
+            cropSelection = cropSelection.withEnabled(checked);
+            if (!checked && originalImageBitmap != null) {
+                // Back to the whole photo, built from memory; the photo is not needed after that
+                refreshCropPreview();
+                restPreview();
+                setCropSource(null);
+                commitSettings(false);
+            } else {
+                refreshCropPreview();
+                restPreview();
+                commitSettings(true);
+            }
+        });
+
+        scaleDetector = new ScaleGestureDetector(this, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                cropSelection = cropSelection.zoomBy(detector.getScaleFactor());
+                scheduleCropFrame();
+                return true;
+            }
+        });
+        view_pickmedia.setOnTouchListener(this::onPreviewTouch);
+
         radiusSeekBar.setOnSeekBarChangeListener(this);
+        view_pickmedia.setImageResource(R.drawable.pfptest);
         loadImageFromInternalStorage(mAppWidgetId);
 
         btn_pickmedia.setOnClickListener(v -> {
@@ -120,23 +275,291 @@ public class PhotoPicker extends AppCompatActivity implements SeekBar.OnSeekBarC
                     .setMediaType(ActivityResultContracts.PickVisualMedia.ImageOnly.INSTANCE)
                     .build());
         });
+        btn_pickalbum.setOnClickListener(v -> {
+            pickAlbum.launch(new PickVisualMediaRequest.Builder()
+                    .setMediaType(ActivityResultContracts.PickVisualMedia.ImageOnly.INSTANCE)
+                    .build());
+        });
     }
 
-    private float calculateDynamicRadius(Bitmap bitmap, int percent) {
-        if (bitmap == null) return 0f;
-        // Full circle radius = half of the shortest side
-        float maxRadius = Math.min(bitmap.getWidth(), bitmap.getHeight()) / 2.0f;
-        return (percent / 100.0f) * maxRadius;
+    private void setUpShapeSpinner() {
+        List<WidgetShape> shapes = new ArrayList<>(WidgetShape.BUILT_IN);
+        // A custom path set for this widget stays selectable
+        if (!shapes.contains(currentShape)) shapes.add(currentShape);
+
+        ArrayAdapter<WidgetShape> adapter = new ArrayAdapter<>(this,
+                android.R.layout.simple_spinner_item, shapes.toArray(new WidgetShape[0]));
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        shapeSpinner.setAdapter(adapter);
+        shapeSpinner.setSelection(shapes.indexOf(currentShape));
+        shapeSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                WidgetShape shape = shapes.get(position);
+                // Also called once for the initial selection
+                if (shape == currentShape) return;
+                currentShape = shape;
+                refreshPreview();
+                restPreview();
+                commitSettings(false);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {}
+        });
     }
 
-    private void refreshPreview() {
-        if (originalImageBitmap != null && !originalImageBitmap.isRecycled()) {
-            if (imgBitmap != null && !imgBitmap.isRecycled()) {
-                imgBitmap.recycle();
+    private int getDecodeBound() {
+        // A widget can never be bigger than the screen, so there is no point keeping more pixels
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        return Math.max(metrics.widthPixels, metrics.heightPixels);
+    }
+
+    private int[] getPreviewBounds() {
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        return new int[]{metrics.widthPixels, Math.round(PREVIEW_HEIGHT_DP * metrics.density)};
+    }
+
+    /**
+     * The largest box with the widget's aspect ratio that fits the preview, so the crop
+     * preview shows exactly what the widget will.
+     */
+    private int[] getPreviewCropBox() {
+        float scale = Math.min(previewBounds[0] / (float) widgetSize.getWidth(),
+                previewBounds[1] / (float) widgetSize.getHeight());
+        return new int[]{
+                Math.max(1, Math.round(widgetSize.getWidth() * scale)),
+                Math.max(1, Math.round(widgetSize.getHeight() * scale))};
+    }
+
+    /**
+     * A decoded photo together with its preview proxy, produced off the main thread.
+     */
+    private static final class LoadedImage {
+        final Bitmap source;
+        final Bitmap proxy;
+
+        LoadedImage(Bitmap source, Bitmap proxy) {
+            this.source = source;
+            this.proxy = proxy;
+        }
+    }
+
+    /**
+     * Decodes a photo and builds its preview proxy. Runs on the pipeline thread, so it
+     * only reads values captured on the main thread.
+     *
+     * @return The proxy, plus the decoded photo when crop mode needs it for gestures.
+     */
+    private LoadedImage decodeImage(File file, int bound, CropSelection crop) {
+        // The widget render that follows starts from this same decode
+        Bitmap source = RenderPipeline.decode(file, bound, bound);
+        if (source == null) return null;
+
+        Bitmap proxy = createPreviewProxy(source, crop, previewBounds, previewCropBox, new int[4]);
+        // The radius preview only needs the proxy
+        return new LoadedImage(crop.enabled ? source : null, proxy);
+    }
+
+    /**
+     * Builds the proxy the preview renders from: the whole photo scaled to the preview, or
+     * with crop mode on only the cropped region, scaled to the crop box. Safe to call off the
+     * main thread.
+     *
+     * @param region Receives the cropped region in source pixels.
+     */
+    private static Bitmap createPreviewProxy(Bitmap source, CropSelection crop, int[] bounds, int[] cropBox,
+                                             int[] region) {
+        crop.computeRegion(source.getWidth(), source.getHeight(), cropBox[0], cropBox[1], region);
+        if (!crop.enabled) {
+            return PreviewRenderer.createProxy(source, bounds[0], bounds[1]);
+        }
+
+        int width = region[2] - region[0];
+        int height = region[3] - region[1];
+        Matrix matrix = new Matrix();
+        float scale = ImageSizing.calculateTargetScale(width, height, cropBox[0], cropBox[1]);
+        matrix.setScale(scale, scale);
+        Bitmap proxy = Bitmap.createBitmap(source, region[0], region[1], width, height, matrix, true);
+        // The renderer takes ownership of the proxy, so it must never be the source itself
+        return proxy == source ? source.copy(Bitmap.Config.ARGB_8888, false) : proxy;
+    }
+
+    /**
+     * Finds something to show right away while the photo decodes: the render the widget
+     * already shows, the EXIF thumbnail, or a heavily subsampled decode, in that order.
+     * Runs on the pipeline thread.
+     *
+     * @param renderKey Key of the widget's current render, or null for a photo just picked.
+     * @return A display only Bitmap at the size the preview will have, or null.
+     */
+    private Bitmap decodeQuickPreview(File file, RenderKey renderKey, CropSelection crop) {
+        int[] box = crop.enabled ? previewCropBox : previewBounds;
+        if (renderKey != null) {
+            // Already cropped and rounded, it only needs scaling
+            Bitmap render = RenderCache.decode(getApplicationContext(), renderKey);
+            if (render != null) {
+                Bitmap preview = createQuickPreview(render, CropSelection.NONE, box);
+                BitmapPool.release(render);
+                return preview;
             }
-            float radius = calculateDynamicRadius(originalImageBitmap, currentRadiusPercent);
-            imgBitmap = BitmapProcessor.getRoundedCornerBitmap(originalImageBitmap, radius);
-            view_pickmedia.setImageBitmap(imgBitmap);
+        }
+
+        Bitmap thumbnail = BitmapProcessor.decodeExifThumbnail(file);
+        if (thumbnail == null) {
+            thumbnail = BitmapProcessor.decodeSampledBitmap(file, previewBounds[0] / 8, previewBounds[1] / 8);
+        }
+        if (thumbnail == null) return null;
+        Bitmap preview = createQuickPreview(thumbnail, crop, box);
+        BitmapPool.release(thumbnail);
+        return preview;
+    }
+
+    /**
+     * Cuts the crop out of a small image and scales it up to fill the box, so the view keeps
+     * its size when the real preview arrives. The result is a new Bitmap, moved out of the
+     * heap when possible since it is never drawn into.
+     */
+    private static Bitmap createQuickPreview(Bitmap image, CropSelection crop, int[] box) {
+        int[] region = new int[4];
+        crop.computeRegion(image.getWidth(), image.getHeight(), box[0], box[1], region);
+        int width = region[2] - region[0];
+        int height = region[3] - region[1];
+        float scale = Math.min(box[0] / (float) width, box[1] / (float) height);
+
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        Bitmap scaled = Bitmap.createBitmap(image, region[0], region[1], width, height, matrix, true);
+        Bitmap preview = scaled.copy(Bitmap.Config.HARDWARE, false);
+        if (preview == null) {
+            return scaled != image ? scaled : image.copy(Bitmap.Config.ARGB_8888, false);
+        }
+        if (scaled != image) BitmapPool.release(scaled);
+        return preview;
+    }
+
+    /**
+     * Binds a freshly decoded photo to the preview. Only view work happens here.
+     */
+    private void setPreviewSource(LoadedImage image) {
+        setCropSource(image.source);
+        setPreviewProxy(image.proxy);
+        restPreview();
+    }
+
+    private void setCropSource(Bitmap source) {
+        originalImageBitmap = source;
+    }
+
+    private void setPreviewProxy(Bitmap proxy) {
+        showPreview(previewRenderer.setProxy(proxy));
+        refreshPreview();
+    }
+
+    private void showPreview(Bitmap bitmap) {
+        if (bitmap == imgBitmap) {
+            // Same Bitmap instance, only its pixels changed
+            view_pickmedia.invalidate();
+            return;
+        }
+        imgBitmap = bitmap;
+        view_pickmedia.setImageBitmap(bitmap);
+        if (restingFrame != null && restingFrame != bitmap) {
+            restingFrame.recycle();
+            restingFrame = null;
+        }
+    }
+
+    /**
+     * Shows the current frame from a HARDWARE bitmap and lets the renderer drop its software
+     * output until the next drag.
+     */
+    private void restPreview() {
+        Bitmap frame = previewRenderer.snapshot();
+        if (frame != null) showRestingFrame(frame);
+    }
+
+    /**
+     * Shows a display only Bitmap owned by the activity, until the next frame replaces it.
+     */
+    private void showRestingFrame(Bitmap frame) {
+        showPreview(frame);
+        restingFrame = frame;
+    }
+
+    /**
+     * Rebuilds the proxy for the current crop from the photo already in memory. Cheap enough
+     * to run once per frame while panning; the sharp version is decoded when the gesture ends.
+     */
+    private void refreshCropPreview() {
+        if (originalImageBitmap == null) return;
+        setPreviewProxy(createPreviewProxy(originalImageBitmap, cropSelection, previewBounds, previewCropBox,
+                cropRegion));
+    }
+
+    private void scheduleCropFrame() {
+        if (!cropFramePending) {
+            cropFramePending = true;
+            view_pickmedia.postOnAnimation(cropFrame);
+        }
+    }
+
+    private boolean onPreviewTouch(View view, MotionEvent event) {
+        if (!cropSelection.enabled || originalImageBitmap == null) return false;
+
+        scaleDetector.onTouchEvent(event);
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                lastTouchX = event.getX();
+                lastTouchY = event.getY();
+                break;
+            case MotionEvent.ACTION_POINTER_UP:
+                // The finger left on the screen carries on panning
+                int remaining = event.getActionIndex() == 0 ? 1 : 0;
+                lastTouchX = event.getX(remaining);
+                lastTouchY = event.getY(remaining);
+                break;
+            case MotionEvent.ACTION_MOVE:
+                if (!scaleDetector.isInProgress() && event.getPointerCount() == 1) {
+                    panBy(event.getX() - lastTouchX, event.getY() - lastTouchY);
+                }
+                lastTouchX = event.getX();
+                lastTouchY = event.getY();
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                view_pickmedia.removeCallbacks(cropFrame);
+                cropFramePending = false;
+                refreshCropPreview();
+                restPreview();
+                commitSettings(true);
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Pans the crop by a finger movement in preview pixels. Dragging right shows more of the
+     * left side, so the crop moves the other way.
+     */
+    private void panBy(float dx, float dy) {
+        Bitmap proxy = previewRenderer.getProxy();
+        if (proxy == null) return;
+        // Source pixels per preview pixel, then as a fraction of the source size
+        float scaleX = (cropRegion[2] - cropRegion[0]) / (float) proxy.getWidth();
+        float scaleY = (cropRegion[3] - cropRegion[1]) / (float) proxy.getHeight();
+        cropSelection = cropSelection.panBy(
+                -dx * scaleX / originalImageBitmap.getWidth(),
+                -dy * scaleY / originalImageBitmap.getHeight());
+        scheduleCropFrame();
+    }
+
+    private void refreshPreview() {
+        if (previewRenderer.hasSource()) {
+            long start = RenderStats.begin(RenderStats.Stage.PREVIEW);
+            Bitmap frame = previewRenderer.render(currentShape, currentRadiusPercent);
+            RenderStats.end(RenderStats.Stage.PREVIEW, start);
+            showPreview(frame);
         }
     }
 
@@ -145,7 +568,10 @@ public class PhotoPicker extends AppCompatActivity implements SeekBar.OnSeekBarC
         if (fromUser) {
             currentRadiusPercent = progress;
             updateRadiusText(progress);
-            refreshPreview();
+            if (!previewFramePending) {
+                previewFramePending = true;
+                view_pickmedia.postOnAnimation(previewFrame);
+            }
         }
     }
 
@@ -153,63 +579,224 @@ public class PhotoPicker extends AppCompatActivity implements SeekBar.OnSeekBarC
         radiusLabelText.setText("Corner Radius: " + percentage + "%");
     }
 
-    private void saveRadiusPercentage(int percentage) {
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        prefs.edit().putInt(PREF_RADIUS_KEY + mAppWidgetId, percentage).apply();
+    private void loadRadiusPercentage() {
+        currentRadiusPercent = WidgetStateStore.get(this, mAppWidgetId).radiusPercent;
     }
 
-    private void loadRadiusPercentage() {
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        currentRadiusPercent = prefs.getInt(PREF_RADIUS_KEY + mAppWidgetId, 50);
+    private void loadShape() {
+        currentShape = WidgetStateStore.get(this, mAppWidgetId).shape;
     }
 
-    private void saveImageToInternalStorage(int appWidgetId) {
-        if (originalImageBitmap == null || originalImageBitmap.isRecycled()) return;
+    private void loadCropSelection() {
+        cropSelection = WidgetStateStore.get(this, mAppWidgetId).crop;
+    }
 
-        File imgSavePath = new File(imgDir, "pic_" + appWidgetId + ".png");
-        Bitmap roundedToSave = null;
+    /**
+     * The save path shared by a pick and a settings change: stores the settings, and the
+     * photo when one was picked, then renders and pushes the widget. Runs on the pipeline
+     * thread, once a job has started committing.
+     *
+     * @param hash The picked photo in {@link SourceImageStore}, or null to keep the current one.
+     */
+    static void saveAndUpdate(Context context, int appWidgetId, int radiusPercent, WidgetShape shape,
+                              CropSelection crop, String hash) {
+        saveSettings(context, appWidgetId, radiusPercent, shape, crop);
+        if (hash != null) {
+            SourceImageStore.assign(context, appWidgetId, hash);
+            // A single photo ends album mode
+            AlbumRotator.clear(context, appWidgetId);
+            deleteLegacyFile(context, appWidgetId);
+        }
+        RenderCache.invalidate(context, appWidgetId);
 
-        try (FileOutputStream out = new FileOutputStream(imgSavePath)) {
-            float radius = calculateDynamicRadius(originalImageBitmap, currentRadiusPercent);
-            roundedToSave = BitmapProcessor.getRoundedCornerBitmap(originalImageBitmap, radius);
-            if (roundedToSave != null) {
-                roundedToSave.compress(Bitmap.CompressFormat.PNG, 100, out);
+        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        PhotoPickerWidgetProvider.updateAppWidget(context, appWidgetManager, appWidgetId);
+        // New settings invalidated the prepared album frames, render them again
+        if (hash == null && !AlbumRotator.getAlbum(context, appWidgetId).isEmpty()) {
+            AlbumRotator.prefetchAsync(context, appWidgetManager, appWidgetId);
+        }
+    }
+
+    private static void saveSettings(Context context, int appWidgetId, int radiusPercent, WidgetShape shape,
+                                     CropSelection crop) {
+        WidgetStateStore.update(context, appWidgetId, state -> state.withSettings(radiusPercent, shape, crop));
+    }
+
+    private static void deleteLegacyFile(Context context, int appWidgetId) {
+        // Files from older versions held an already rounded copy, the store replaces them
+        File legacyFile = new File(context.getDir("imgDir", MODE_PRIVATE), "pic_" + appWidgetId + ".png");
+        if (legacyFile.exists()) legacyFile.delete();
+    }
+
+    private void loadImageFromInternalStorage(int appWidgetId) {
+        final int bound = getDecodeBound();
+        final int radiusPercent = currentRadiusPercent;
+        final WidgetShape shape = currentShape;
+        final CropSelection crop = cropSelection;
+        final Size size = widgetSize;
+        final Context appContext = getApplicationContext();
+
+        pipeline.submit(task -> {
+            task.enter(ImagePipeline.Stage.PREVIEW);
+            File imgFile = SourceImageStore.getSourceFile(appContext, appWidgetId);
+            if (imgFile == null) {
+                imgFile = new File(imgDir, "pic_" + appWidgetId + ".png");
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Save Error: " + e.getMessage());
-        } finally {
-            if (roundedToSave != null && !roundedToSave.isRecycled()) {
-                roundedToSave.recycle();
+            if (!imgFile.exists()) return null;
+
+            // Show what the widget shows now, then swap in the full preview
+            String hash = SourceImageStore.getHash(appContext, appWidgetId);
+            RenderKey renderKey = hash == null ? null : new RenderKey(appWidgetId,
+                    size.getWidth(), size.getHeight(), radiusPercent, shape.key(), crop.key(), hash);
+            task.publish(decodeQuickPreview(imgFile, renderKey, crop));
+
+            task.enter(ImagePipeline.Stage.DECODE);
+            return decodeImage(imgFile, bound, crop);
+        }, new ImagePipeline.Callback<LoadedImage>() {
+            @Override
+            public void onResult(LoadedImage image) {
+                // No photo yet keeps the placeholder
+                if (image != null) setPreviewSource(image);
             }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "Load Error: " + e.getMessage());
+                view_pickmedia.setImageResource(R.drawable.pfptest);
+            }
+
+            @Override
+            public void onPreview(Bitmap preview) {
+                showRestingFrame(preview);
+            }
+        });
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Dropped while in the background, crop gestures need it back
+        if (cropSelection.enabled && originalImageBitmap == null && previewRenderer.hasSource()) {
+            reloadCropSource();
         }
     }
 
-    private void loadImageFromInternalStorage(int appWidgetId) {
-        File imgFile = new File(imgDir, "pic_" + appWidgetId + ".png");
-        if (!imgFile.exists()) {
-            view_pickmedia.setImageResource(R.drawable.pfptest);
-            return;
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Nobody is dragging, the preview can rest as a HARDWARE bitmap
+            restPreview();
         }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            // The screen sized photo is the biggest thing the picker holds, decoded again on return
+            setCropSource(null);
+        }
+    }
 
-        try (FileInputStream fis = new FileInputStream(imgFile)) {
-            if (originalImageBitmap != null && !originalImageBitmap.isRecycled()) {
-                originalImageBitmap.recycle();
+    /**
+     * Decodes the photo crop gestures work on again, after {@link #onTrimMemory(int)} let go of it.
+     */
+    private void reloadCropSource() {
+        final int bound = getDecodeBound();
+        final Context appContext = getApplicationContext();
+        // Queued, a pick result is delivered from super.onStart just before this and must not be cancelled
+        pipeline.queue(task -> {
+            task.enter(ImagePipeline.Stage.DECODE);
+            File sourceFile = SourceImageStore.getSourceFile(appContext, mAppWidgetId);
+            return sourceFile == null ? null : RenderPipeline.decode(sourceFile, bound, bound);
+        }, new ImagePipeline.Callback<Bitmap>() {
+            @Override
+            public void onResult(Bitmap source) {
+                if (source != null && cropSelection.enabled) setCropSource(source);
             }
-            originalImageBitmap = BitmapFactory.decodeStream(fis);
-            refreshPreview();
-        } catch (Exception e) {
-            Log.e(TAG, "Load Error: " + e.getMessage());
-            view_pickmedia.setImageResource(R.drawable.pfptest);
-        }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "Reload Error: " + e.getMessage());
+            }
+        });
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (imgBitmap != null && !imgBitmap.isRecycled()) imgBitmap.recycle();
-        if (originalImageBitmap != null && !originalImageBitmap.isRecycled()) originalImageBitmap.recycle();
+        // Loads still running are dropped, a save already committing finishes on its own
+        pipeline.shutdown();
+        if (view_pickmedia != null) {
+            view_pickmedia.removeCallbacks(previewFrame);
+            view_pickmedia.removeCallbacks(cropFrame);
+        }
+        previewRenderer.release();
+        if (restingFrame != null) restingFrame.recycle();
+        originalImageBitmap = null;
     }
 
     @Override public void onStartTrackingTouch(SeekBar seekBar) {}
-    @Override public void onStopTrackingTouch(SeekBar seekBar) {}
-}
\ No newline at end of file
+
+    @Override
+    public void onStopTrackingTouch(SeekBar seekBar) {
+        // The drag is over, show the final radius and let the widget render at full resolution
+        view_pickmedia.removeCallbacks(previewFrame);
+        previewFramePending = false;
+        refreshPreview();
+        restPreview();
+        commitSettings(false);
+    }
+
+    /**
+     * Saves the radius, shape and crop and updates the widget. Queued behind the running job
+     * rather than replacing it, so a pick still saving goes on to close the picker.
+     *
+     * @param refreshCrop Also decode a new preview proxy: the crop region at full detail after
+     *                    a gesture previewed from the screen sized photo, or whatever the
+     *                    crop mode now needs when the photo is not in memory.
+     */
+    private void commitSettings(boolean refreshCrop) {
+        if (!previewRenderer.hasSource()) return;
+
+        final int radiusPercent = currentRadiusPercent;
+        final WidgetShape shape = currentShape;
+        final CropSelection crop = cropSelection;
+        final int[] cropBox = previewCropBox;
+        final int bound = getDecodeBound();
+        // The crop mode changed and the photo is not in memory to build the preview from
+        final boolean needSource = originalImageBitmap == null;
+        final Context appContext = getApplicationContext();
+        pipeline.queue(task -> {
+            LoadedImage image = null;
+            if (refreshCrop) {
+                task.enter(ImagePipeline.Stage.DECODE);
+                File sourceFile = SourceImageStore.getSourceFile(appContext, mAppWidgetId);
+                if (sourceFile != null && (needSource || !crop.enabled)) {
+                    image = decodeImage(sourceFile, bound, crop);
+                } else if (sourceFile != null) {
+                    image = new LoadedImage(null, BitmapProcessor.decodeCroppedBitmap(sourceFile, crop,
+                            cropBox[0], cropBox[1], Bitmap.Config.ARGB_8888));
+                }
+            }
+
+            task.commit(ImagePipeline.Stage.SAVE);
+            saveAndUpdate(appContext, mAppWidgetId, radiusPercent, shape, crop, null);
+            return image;
+        }, new ImagePipeline.Callback<LoadedImage>() {
+            @Override
+            public void onResult(LoadedImage image) {
+                if (image == null || image.proxy == null) return;
+                // A gesture started since then already shows a newer crop
+                if (crop == cropSelection) {
+                    if (image.source != null) setCropSource(image.source);
+                    setPreviewProxy(image.proxy);
+                    restPreview();
+                } else {
+                    image.proxy.recycle();
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "Save Error: " + e.getMessage());
+            }
+        });
+    }
+}
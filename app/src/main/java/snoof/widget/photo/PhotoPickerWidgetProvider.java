@@ -5,54 +5,157 @@ import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.os.Bundle;
+import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.Size;
 import android.widget.RemoteViews;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 public class PhotoPickerWidgetProvider extends AppWidgetProvider {
 
     private static final String TAG = "PhotoWidgetProvider";
-    private static final String PREFS_NAME = "PhotoWidgetPrefs";
-    private static final String PREF_RADIUS_KEY = "radius_percent_";
+
+    @Override
+    public void onEnabled(Context context) {
+        // The first widget was added, files from widgets removed while we were not running
+        // or from a restored backup may still be around
+        Context appContext = context.getApplicationContext();
+        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        WidgetUpdateScheduler.execute(() -> StorageReconciler.reconcileIfDue(appContext, appWidgetManager));
+    }
 
     @Override
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
-        for (int appWidgetId : appWidgetIds) {
-            updateAppWidget(context, appWidgetManager, appWidgetId);
+        // Render on the worker pool, the receiver stays alive until every widget is pushed
+        PendingResult pendingResult = goAsync();
+        Context appContext = context.getApplicationContext();
+        CompletableFuture<?>[] work = new CompletableFuture<?>[appWidgetIds.length + 1];
+        for (int i = 0; i < appWidgetIds.length; i++) {
+            work[i] = WidgetUpdateScheduler.request(context, appWidgetManager, appWidgetIds[i]);
+        }
+
+        // Settings and widget states may still be loading from disk, never wait for them here
+        work[appWidgetIds.length] = WidgetUpdateScheduler.execute(() -> {
+            StorageReconciler.reconcileIfDue(appContext, appWidgetManager);
+
+            // Alarms do not survive a reboot, and onUpdate is what runs after one
+            for (int appWidgetId : appWidgetIds) {
+                if (!AlbumRotator.getAlbum(appContext, appWidgetId).isEmpty()) {
+                    AlbumRotator.scheduleRotation(appContext);
+                    break;
+                }
+            }
+        });
+        WidgetUpdateScheduler.whenAllDone(work, pendingResult::finish);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (AlbumRotator.ACTION_ROTATE.equals(intent.getAction())) {
+            PendingResult pendingResult = goAsync();
+            AlbumRotator.rotate(context, AppWidgetManager.getInstance(context), pendingResult::finish);
+            return;
         }
+        super.onReceive(context, intent);
+    }
+
+    @Override
+    public void onAppWidgetOptionsChanged(Context context, AppWidgetManager appWidgetManager,
+                                          int appWidgetId, Bundle newOptions) {
+        // The widget was resized, render again so the decoded size follows the new bounds
+        PendingResult pendingResult = goAsync();
+        WidgetUpdateScheduler.requestAll(context, appWidgetManager, new int[]{appWidgetId}, pendingResult::finish);
     }
 
     @Override
     public void onDeleted(Context context, int[] appWidgetIds) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        PendingResult pendingResult = goAsync();
+        Context appContext = context.getApplicationContext();
+        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        CompletableFuture<Void> cleanup = WidgetUpdateScheduler.execute(() -> {
+            deleteWidgetData(appContext, appWidgetIds);
+            AlbumRotator.cancelRotationIfUnused(appContext, appWidgetManager);
+        });
+        WidgetUpdateScheduler.whenAllDone(new CompletableFuture<?>[]{cleanup}, pendingResult::finish);
+    }
+
+    @Override
+    public void onDisabled(Context context) {
+        // The last widget is gone
+        PendingResult pendingResult = goAsync();
+        Context appContext = context.getApplicationContext();
+        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        CompletableFuture<Void> cancel = WidgetUpdateScheduler.execute(
+                () -> AlbumRotator.cancelRotationIfUnused(appContext, appWidgetManager));
+        WidgetUpdateScheduler.whenAllDone(new CompletableFuture<?>[]{cancel}, pendingResult::finish);
+    }
+
+    /**
+     * Removes everything stored for the given widgets: their photo references, albums,
+     * settings and renders. Used when the launcher deletes widgets, and for widgets that
+     * {@link StorageReconciler} finds gone without that ever happening. Runs on the update
+     * pool, it reads the widget states and deletes files.
+     */
+    static void deleteWidgetData(Context context, int[] appWidgetIds) {
         File imgDir = context.getDir("imgDir", Context.MODE_PRIVATE);
 
         for (int appWidgetId : appWidgetIds) {
-            // Delete image file
+            // Delete image file, or drop our reference on the shared source
             File file = new File(imgDir, "pic_" + appWidgetId + ".png");
             if (file.exists()) file.delete();
+            SourceImageStore.release(context, appWidgetId);
+            AlbumRotator.clear(context, appWidgetId);
 
-            // Delete shared preference
-            prefs.edit().remove(PREF_RADIUS_KEY + appWidgetId).apply();
+            // Delete cached renders
+            RenderCache.invalidate(context, appWidgetId);
             Log.d(TAG, "Cleaned up ID: " + appWidgetId);
         }
+
+        // Settings and album go in one write for all of them
+        WidgetStateStore.delete(context, appWidgetIds);
     }
 
     public static void updateAppWidget(Context context, AppWidgetManager appWidgetManager, int appWidgetId) {
+        long start = RenderStats.begin(RenderStats.Stage.RENDER);
+        try {
+            renderAndPush(context, appWidgetManager, appWidgetId);
+        } finally {
+            RenderStats.end(RenderStats.Stage.RENDER, start);
+        }
+    }
+
+    private static void renderAndPush(Context context, AppWidgetManager appWidgetManager, int appWidgetId) {
         RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.photowidget);
 
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        int radiusPercent = prefs.getInt(PREF_RADIUS_KEY + appWidgetId, 50);
+        File imgFile = getSourceFile(context, appWidgetId);
+        File renderFile = null;
+        Bitmap photoBitmap = null;
 
-        Bitmap photoBitmap = loadImageFromInternalStorage(context, appWidgetId, radiusPercent);
+        if (imgFile != null) {
+            RenderKey key = getRenderKey(context, appWidgetManager, appWidgetId,
+                    SourceImageStore.getHash(context, appWidgetId));
+
+            // Serve the finished render when nothing it depends on has changed, without decoding it
+            renderFile = RenderCache.getFile(context, key);
+            if (renderFile == null) {
+                photoBitmap = renderImage(context, imgFile, key);
+                renderFile = RenderCache.putFile(context, key, photoBitmap);
+                if (renderFile != null) {
+                    BitmapPool.release(photoBitmap);
+                    photoBitmap = null;
+                }
+            }
+        }
 
-        if (photoBitmap != null) {
+        if (renderFile != null) {
+            // The launcher reads the file through our provider, the update itself stays tiny
+            views.setImageViewUri(R.id.photoWidgetview, RenderFileProvider.getUri(context, renderFile));
+        } else if (photoBitmap != null) {
+            // Could not write the render, parcel the Bitmap as a last resort
             views.setImageViewBitmap(R.id.photoWidgetview, photoBitmap);
         } else {
             views.setImageViewResource(R.id.photoWidgetview, R.drawable.pfptest);
@@ -68,28 +171,88 @@ public class PhotoPickerWidgetProvider extends AppWidgetProvider {
         );
 
         views.setOnClickPendingIntent(R.id.photoWidgetview, pendingIntent);
-        appWidgetManager.updateAppWidget(appWidgetId, views);
+
+        long start = RenderStats.begin(RenderStats.Stage.PUSH);
+        try {
+            appWidgetManager.updateAppWidget(appWidgetId, views);
+        } finally {
+            RenderStats.end(RenderStats.Stage.PUSH, start);
+        }
+        // Parceled into the update by now
+        BitmapPool.release(photoBitmap);
     }
 
-    private static Bitmap loadImageFromInternalStorage(Context context, int appWidgetId, int radiusPercent) {
-        File imgFile = new File(context.getDir("imgDir", Context.MODE_PRIVATE), "pic_" + appWidgetId + ".png");
+    /**
+     * Returns the largest size the launcher may show the widget at, in pixels. Falls back to
+     * the shortest screen side when the launcher has not reported the widget options yet.
+     */
+    static Size getWidgetSizePx(Context context, AppWidgetManager appWidgetManager, int appWidgetId) {
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        Bundle options = appWidgetManager.getAppWidgetOptions(appWidgetId);
 
-        if (!imgFile.exists()) return null;
+        int widthDp = options != null ? options.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_WIDTH, 0) : 0;
+        int heightDp = options != null ? options.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_HEIGHT, 0) : 0;
+        if (widthDp <= 0 || heightDp <= 0) {
+            int fallback = Math.min(metrics.widthPixels, metrics.heightPixels);
+            return new Size(fallback, fallback);
+        }
+        return new Size(Math.round(widthDp * metrics.density), Math.round(heightDp * metrics.density));
+    }
 
-        try (FileInputStream fis = new FileInputStream(imgFile)) {
-            Bitmap original = BitmapFactory.decodeStream(fis);
-            if (original != null) {
-                // Dynamic radius calculation for the widget
-                float maxRadius = Math.min(original.getWidth(), original.getHeight()) / 2.0f;
-                float actualRadiusPixels = (radiusPercent / 100.0f) * maxRadius;
+    /**
+     * Returns the key a widget's render of the given source is cached under, for the
+     * widget's current size and settings.
+     */
+    static RenderKey getRenderKey(Context context, AppWidgetManager appWidgetManager, int appWidgetId, String hash) {
+        WidgetState state = WidgetStateStore.get(context, appWidgetId);
+        Size widgetSize = getWidgetSizePx(context, appWidgetManager, appWidgetId);
+        return new RenderKey(appWidgetId, widgetSize.getWidth(), widgetSize.getHeight(),
+                state.radiusPercent, state.shape.key(), state.crop.key(), hash);
+    }
+
+    /**
+     * Renders a widget for the given source into the disk cache without pushing it, so a
+     * later update finds it ready. Does nothing when the render is already cached.
+     *
+     * @return The key the render is cached under.
+     */
+    static RenderKey prerender(Context context, AppWidgetManager appWidgetManager, int appWidgetId, String hash) {
+        RenderKey key = getRenderKey(context, appWidgetManager, appWidgetId, hash);
+        if (RenderCache.contains(context, key)) return key;
+
+        File imgFile = SourceImageStore.getFileForHash(context, hash);
+        if (!imgFile.exists()) return key;
 
-                Bitmap rounded = BitmapProcessor.getRoundedCornerBitmap(original, actualRadiusPixels);
-                original.recycle(); // Original is no longer needed once rounded
-                return rounded;
+        long start = RenderStats.begin(RenderStats.Stage.RENDER);
+        try {
+            Bitmap rendered = renderImage(context, imgFile, key);
+            if (rendered != null) {
+                RenderCache.putFile(context, key, rendered);
+                BitmapPool.release(rendered);
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Error loading widget image: " + e.getMessage());
+        } finally {
+            RenderStats.end(RenderStats.Stage.RENDER, start);
         }
+        return key;
+    }
+
+    private static File getSourceFile(Context context, int appWidgetId) {
+        // Untouched source from the store. A pre-rounded file written by older versions is
+        // moved into the store the first time it is needed.
+        File imgFile = SourceImageStore.getSourceFile(context, appWidgetId);
+        if (imgFile == null) {
+            imgFile = SourceImageStore.migrateLegacyFile(context, appWidgetId);
+        }
+        return imgFile;
+    }
+
+    private static Bitmap renderImage(Context context, File imgFile, RenderKey key) {
+        WidgetState state = WidgetStateStore.get(context, key.appWidgetId);
+
+        // Only the stages whose inputs changed since the last render run again
+        Bitmap rendered = RenderPipeline.render(imgFile, state.crop, state.shape, key);
+        if (rendered != null) return rendered;
+        Log.e(TAG, "Error loading widget image: could not decode " + imgFile.getName());
         return null;
     }
 }
\ No newline at end of file
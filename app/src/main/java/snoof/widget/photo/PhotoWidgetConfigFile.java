@@ -25,8 +25,9 @@ public class PhotoWidgetConfigFile extends AppCompatActivity {
                     // PhotoPicker finished successfully, and it should have saved the image to internal storage.
 
                     // The PhotoPicker should have already called updateAppWidget, but we ensure it here too.
+                    // Queued in the background, it is a cache hit by now.
                     AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(this);
-                    PhotoPickerWidgetProvider.updateAppWidget(this, appWidgetManager, mAppWidgetId);
+                    WidgetUpdateScheduler.request(this, appWidgetManager, mAppWidgetId);
 
                     // Prepare the result Intent to send back to the launcher.
                     Intent configResult = new Intent();
@@ -0,0 +1,187 @@
+package snoof.widget.photo;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+
+/**
+ * Renders the shape and corner radius preview shown while dragging the slider.
+ * Works from a proxy of the photo scaled down to the size of the preview, and writes every
+ * frame into the same output Bitmap. For the rounded rectangle a radius change only restores
+ * and re-rounds the four corner squares, so a frame costs a few small pixel copies and no
+ * allocation. Other shapes write the whole frame through their {@link ShapeMask}.
+ * Between drags the frame can be moved to a HARDWARE bitmap with {@link #snapshot()}, so only
+ * the proxy stays in the app's memory while the preview sits still.
+ * Must only be used from the main thread.
+ */
+class PreviewRenderer {
+
+    private final RoundedCornerKernel kernel = new RoundedCornerKernel();
+
+    private Bitmap proxy;
+    private Bitmap output;
+    private float lastRadius;
+    // The last frame went through a mask, so any pixel may differ from the proxy
+    private boolean lastMasked;
+
+    // Built for the preview's own size, kept here rather than in the shared mask cache since
+    // a squircle drag goes through a new one every frame
+    private ShapeMask mask;
+    private WidgetShape maskShape;
+    private int maskRadiusPercent;
+
+    /**
+     * Makes a copy of the photo scaled down to fit the preview. Safe to call off the main
+     * thread; the source is left untouched.
+     */
+    static Bitmap createProxy(Bitmap source, int maxWidth, int maxHeight) {
+        float scale = ImageSizing.calculateTargetScale(source.getWidth(), source.getHeight(), maxWidth, maxHeight);
+        if (scale < 1f) {
+            int width = Math.max(1, Math.round(source.getWidth() * scale));
+            int height = Math.max(1, Math.round(source.getHeight() * scale));
+            return Bitmap.createScaledBitmap(source, width, height, true);
+        }
+        return source.copy(Bitmap.Config.ARGB_8888, false);
+    }
+
+    /**
+     * Sets the proxy to preview from, see {@link #createProxy(Bitmap, int, int)}. The renderer
+     * takes ownership of it. The output buffer is kept when its size still matches.
+     *
+     * @return The output Bitmap to attach to the preview view.
+     */
+    Bitmap setProxy(Bitmap proxy) {
+        BitmapPool.release(this.proxy);
+        this.proxy = proxy;
+
+        if (output == null || output.getWidth() != proxy.getWidth() || output.getHeight() != proxy.getHeight()) {
+            BitmapPool.release(output);
+            output = null;
+            createOutput();
+        } else {
+            resetOutput();
+        }
+        return output;
+    }
+
+    /**
+     * Moves the current frame to a HARDWARE bitmap for display while the preview is idle and
+     * frees the software output; the next render recreates it. The caller owns the result.
+     *
+     * @return The frame as a HARDWARE bitmap, or null if there is no frame or the copy
+     *         failed, in which case the software output stays in place.
+     */
+    Bitmap snapshot() {
+        if (!hasSource() || output == null) return null;
+        Bitmap frame = output.copy(Bitmap.Config.HARDWARE, false);
+        if (frame == null) return null;
+        BitmapPool.release(output);
+        output = null;
+        return frame;
+    }
+
+    boolean hasSource() {
+        return proxy != null && !proxy.isRecycled();
+    }
+
+    /**
+     * The proxy the preview is rendered from, used to map finger movement onto the crop.
+     */
+    Bitmap getProxy() {
+        return proxy;
+    }
+
+    /**
+     * Renders the preview cut to the given shape into the output Bitmap and returns it. The
+     * caller only needs to invalidate the view showing it.
+     */
+    Bitmap render(WidgetShape shape, int radiusPercent) {
+        if (!hasSource()) return null;
+        if (output == null) createOutput();
+
+        if (shape != WidgetShape.ROUNDED_RECT) {
+            BitmapProcessor.applyMask(getMask(shape, radiusPercent), proxy, output);
+            lastRadius = 0f;
+            lastMasked = true;
+            return output;
+        }
+
+        // Put back the pixels the previous radius cut away, then round from the pristine proxy
+        if (lastMasked) {
+            resetOutput();
+        } else {
+            restoreCorners(lastRadius);
+        }
+        float radius = ImageSizing.calculateCornerRadius(proxy.getWidth(), proxy.getHeight(), radiusPercent);
+        kernel.prepare(radius, proxy.getWidth(), proxy.getHeight());
+        if (!kernel.isNoop()) {
+            int[] buffer = kernel.scratch();
+            for (int corner = RoundedCornerKernel.TOP_LEFT; corner <= RoundedCornerKernel.BOTTOM_RIGHT; corner++) {
+                int x = kernel.cornerX(corner);
+                int y = kernel.cornerY(corner);
+                int width = kernel.cornerWidth(corner);
+                int height = kernel.cornerHeight(corner);
+                if (width == 0 || height == 0) continue;
+
+                proxy.getPixels(buffer, 0, width, x, y, width, height);
+                kernel.applyCorner(buffer, 0, width, corner);
+                output.setPixels(buffer, 0, width, x, y, width, height);
+            }
+        }
+        lastRadius = radius;
+        return output;
+    }
+
+    private ShapeMask getMask(WidgetShape shape, int radiusPercent) {
+        int radius = shape.usesRadius() ? radiusPercent : 0;
+        if (mask == null || maskShape != shape || maskRadiusPercent != radius
+                || mask.width != proxy.getWidth() || mask.height != proxy.getHeight()) {
+            mask = ShapeMask.create(shape, proxy.getWidth(), proxy.getHeight(), radius);
+            maskShape = shape;
+            maskRadiusPercent = radius;
+        }
+        return mask;
+    }
+
+    private void createOutput() {
+        // Recreated after every snapshot, so usually the previous output comes back from the pool
+        output = BitmapPool.obtain(proxy.getWidth(), proxy.getHeight(), Bitmap.Config.ARGB_8888);
+        new Canvas(output).drawBitmap(proxy, 0, 0, null);
+        output.setHasAlpha(true);
+        lastRadius = 0f;
+        lastMasked = false;
+    }
+
+    private void resetOutput() {
+        output.eraseColor(Color.TRANSPARENT);
+        new Canvas(output).drawBitmap(proxy, 0, 0, null);
+        output.setHasAlpha(true);
+        lastRadius = 0f;
+        lastMasked = false;
+    }
+
+    void release() {
+        BitmapPool.release(proxy);
+        BitmapPool.release(output);
+        proxy = null;
+        output = null;
+        mask = null;
+    }
+
+    private void restoreCorners(float radius) {
+        kernel.prepare(radius, output.getWidth(), output.getHeight());
+        if (kernel.isNoop()) return;
+
+        int[] buffer = kernel.scratch();
+        for (int corner = RoundedCornerKernel.TOP_LEFT; corner <= RoundedCornerKernel.BOTTOM_RIGHT; corner++) {
+            int x = kernel.cornerX(corner);
+            int y = kernel.cornerY(corner);
+            int width = kernel.cornerWidth(corner);
+            int height = kernel.cornerHeight(corner);
+            if (width == 0 || height == 0) continue;
+
+            proxy.getPixels(buffer, 0, width, x, y, width, height);
+            output.setPixels(buffer, 0, width, x, y, width, height);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package snoof.widget.photo;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Disk cache of finished widget renders (decoded, scaled and rounded). It survives launcher
+ * restarts and reboots, so a periodic update does not have to decode the photo again. The
+ * widget path hands the files to the launcher as they are, so nothing is kept in memory.
+ */
+public class RenderCache {
+
+    private static final String TAG = "RenderCache";
+    private static final String CACHE_DIR = "renders";
+
+    private RenderCache() {}
+
+    /**
+     * Decodes the cached render for the key, or returns null on a miss. For the picker's
+     * preview, so it is not counted in the widget lookups of {@link RenderStats}. The
+     * caller owns the returned Bitmap.
+     */
+    public static Bitmap decode(Context context, RenderKey key) {
+        File file = findFile(context, key);
+        if (file == null) return null;
+
+        long start = RenderStats.begin(RenderStats.Stage.CACHE_READ);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if (file.getName().endsWith(ImageEncoder.Encoding.JPEG.extension)) {
+            // Only opaque renders are written as JPEG, half the memory and no visible loss
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+        }
+        Bitmap fromDisk = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        RenderStats.end(RenderStats.Stage.CACHE_READ, start);
+        if (fromDisk == null) {
+            // Unreadable entry, drop it so the next render replaces it
+            file.delete();
+        }
+        return fromDisk;
+    }
+
+    /**
+     * Returns the encoded render on disk for the key without decoding it, or null on a miss.
+     * Used to hand the file to the launcher through {@link RenderFileProvider}.
+     */
+    public static File getFile(Context context, RenderKey key) {
+        File file = findFile(context, key);
+        if (file == null) {
+            RenderStats.recordMiss();
+        } else {
+            RenderStats.recordDiskHit();
+        }
+        return file;
+    }
+
+    /**
+     * Resolves a file name from {@link #getFile(Context, RenderKey)} back to the file.
+     *
+     * @return The file, or null if the name does not point inside the cache directory or
+     *         is a render still being written.
+     */
+    static File getFileByName(Context context, String name) {
+        if (name == null || name.isEmpty() || name.startsWith(".") || name.endsWith(".tmp")
+                || !name.equals(new File(name).getName())) {
+            return null;
+        }
+        return new File(getCacheDir(context), name);
+    }
+
+    /**
+     * Returns whether a render is on disk, without touching the stats.
+     */
+    public static boolean contains(Context context, RenderKey key) {
+        return findFile(context, key) != null;
+    }
+
+    /**
+     * Writes a finished render to disk. Renders of the same widget with older settings are
+     * dropped, only the latest configuration is worth keeping. The caller keeps ownership
+     * of the Bitmap.
+     *
+     * @return The file the render was written to, or null if writing it failed.
+     */
+    public static File putFile(Context context, RenderKey key, Bitmap bitmap) {
+        if (bitmap == null) return null;
+
+        invalidateOtherSettings(context, key);
+
+        File dir = getCacheDir(context);
+        // A name of its own, the picker and the update pool may write the same render at once
+        File tmp;
+        try {
+            tmp = File.createTempFile(key.name() + "_", ".tmp", dir);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write render " + key + ": " + e.getMessage());
+            return null;
+        }
+        ImageEncoder.Encoding encoding;
+        long start = RenderStats.begin(RenderStats.Stage.ENCODE);
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            encoding = ImageEncoder.encode(bitmap, ImageEncoder.getPolicy(context), out);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write render " + key + ": " + e.getMessage());
+            tmp.delete();
+            return null;
+        } finally {
+            RenderStats.end(RenderStats.Stage.ENCODE, start);
+        }
+        RenderStats.recordWritten(tmp.length());
+        StorageReconciler.onRenderWritten(context, tmp.length());
+        // Rename so a crash mid write never leaves a truncated entry behind.
+        // The extension records the format that was chosen.
+        File file = new File(dir, key.name() + encoding.extension);
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Drops every cached render of a widget. Called when the widget
+     * is reconfigured or deleted.
+     */
+    public static void invalidate(Context context, int appWidgetId) {
+        String prefix = RenderKey.widgetPrefix(appWidgetId);
+        removeMatching(context, name -> name.startsWith(prefix));
+    }
+
+    /**
+     * Drops every render of a widget except the named ones, used to bound the frames kept
+     * for an album.
+     */
+    public static void retainOnly(Context context, int appWidgetId, Set<String> keyNames) {
+        String prefix = RenderKey.widgetPrefix(appWidgetId);
+        removeMatching(context, name -> name.startsWith(prefix) && !keyNames.contains(stripExtension(name)));
+    }
+
+    /**
+     * Returns the ids of every widget with a render on disk.
+     */
+    static Set<Integer> getWidgetIds(Context context) {
+        Set<Integer> ids = new HashSet<>();
+        String[] names = getCacheDir(context).list();
+        if (names != null) {
+            for (String name : names) {
+                int appWidgetId = RenderKey.parseWidgetId(name);
+                if (appWidgetId != -1) ids.add(appWidgetId);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Deletes renders from disk, least recently written first, until the rest fits in
+     * maxBytes. Renders named in keep go last, they are what the widgets show right now.
+     * Everything here is derived from the source photos, so any entry can be rendered again.
+     *
+     * @return The number of bytes freed.
+     */
+    static long trimToSize(Context context, long maxBytes, Set<String> keep) {
+        File[] files = getCacheDir(context).listFiles((dir, name) -> !name.endsWith(".tmp"));
+        if (files == null) return 0;
+
+        // Read the attributes once, a render written meanwhile must not upset the sort
+        List<DiskEntry> entries = new ArrayList<>(files.length);
+        long total = 0;
+        for (File file : files) {
+            DiskEntry entry = new DiskEntry(file, keep.contains(stripExtension(file.getName())));
+            entries.add(entry);
+            total += entry.length;
+        }
+        if (total <= maxBytes) return 0;
+
+        entries.sort(Comparator.comparing((DiskEntry entry) -> entry.kept)
+                .thenComparingLong(entry -> entry.lastModified));
+        long freed = 0;
+        for (DiskEntry entry : entries) {
+            if (total - freed <= maxBytes) break;
+            if (entry.file.delete()) freed += entry.length;
+        }
+        return freed;
+    }
+
+    private static final class DiskEntry {
+        final File file;
+        final boolean kept;
+        final long length;
+        final long lastModified;
+
+        DiskEntry(File file, boolean kept) {
+            this.file = file;
+            this.kept = kept;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+    }
+
+    private static void invalidateOtherSettings(Context context, RenderKey key) {
+        String prefix = RenderKey.widgetPrefix(key.appWidgetId);
+        String settings = key.settingsPrefix();
+        removeMatching(context, name -> name.startsWith(prefix) && !name.startsWith(settings));
+    }
+
+    private static void removeMatching(Context context, Predicate<String> matches) {
+        // Entries still being written keep their .tmp name and are left alone
+        File[] files = getCacheDir(context).listFiles((dir, name) -> !name.endsWith(".tmp") && matches.test(name));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private static String stripExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private static File findFile(Context context, RenderKey key) {
+        return key.findIn(getCacheDir(context));
+    }
+
+    private static File getCacheDir(Context context) {
+        File dir = new File(context.getCacheDir(), CACHE_DIR);
+        if (!dir.exists()) dir.mkdirs();
+        return dir;
+    }
+}
@@ -0,0 +1,133 @@
+package snoof.widget.photo;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.List;
+
+/**
+ * Serves finished renders to the launcher, so a widget update carries a content Uri instead
+ * of a whole Bitmap parceled into the RemoteViews transaction. The launcher opens the file
+ * itself, which also avoids TransactionTooLargeException on big widgets.
+ *
+ * Read only, and only for files in the render cache. The provider is not exported: the
+ * launchers get read access to the renders through a Uri grant, every other app is refused
+ * by the system before it gets here.
+ */
+public class RenderFileProvider extends ContentProvider {
+
+    private static final String PATH_RENDERS = "renders";
+    // Launchers cache images by Uri, a new version makes them read the file again
+    private static final String PARAM_VERSION = "v";
+    private static final int GRANT_FLAGS =
+            Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_PREFIX_URI_PERMISSION;
+
+    // Whether the launchers were given read access in this process, see grantToLaunchers
+    private static volatile boolean granted;
+
+    /**
+     * Returns the Uri the launcher should load a render from, and makes sure the launcher
+     * may read it.
+     */
+    public static Uri getUri(Context context, File renderFile) {
+        grantToLaunchers(context);
+        return getRendersUri(context).buildUpon()
+                .appendPath(renderFile.getName())
+                .appendQueryParameter(PARAM_VERSION, Long.toString(renderFile.lastModified()))
+                .build();
+    }
+
+    /**
+     * Gives every installed home app read access to all renders, once per process. A
+     * prefix grant covers renders written later too, so there is one grant per launcher
+     * rather than one per render. Grants last until the device restarts, a launcher
+     * installed in the meantime is granted the next time the process starts.
+     */
+    private static void grantToLaunchers(Context context) {
+        if (granted) return;
+
+        Uri renders = getRendersUri(context);
+        Intent home = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_HOME);
+        for (ResolveInfo info : context.getPackageManager().queryIntentActivities(home, PackageManager.MATCH_ALL)) {
+            context.grantUriPermission(info.activityInfo.packageName, renders, GRANT_FLAGS);
+        }
+        granted = true;
+    }
+
+    private static Uri getRendersUri(Context context) {
+        return new Uri.Builder()
+                .scheme(ContentResolver.SCHEME_CONTENT)
+                .authority(context.getPackageName() + ".renders")
+                .appendPath(PATH_RENDERS)
+                .build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new SecurityException("Renders are read only");
+        }
+
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2 || !PATH_RENDERS.equals(segments.get(0))) {
+            throw new FileNotFoundException("Unknown uri " + uri);
+        }
+
+        String name = segments.get(1);
+        File file = RenderCache.getFileByName(getContext(), name);
+        if (file == null) {
+            throw new FileNotFoundException("Unknown uri " + uri);
+        }
+        if (!file.isFile()) {
+            // The system cleared the cache directory. Do no work on the launcher's behalf, the
+            // widget's next update finds the miss and renders again.
+            throw new FileNotFoundException("Render no longer cached: " + name);
+        }
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        String name = uri.getLastPathSegment();
+        if (name == null) return null;
+        if (name.endsWith(".webp")) return "image/webp";
+        if (name.endsWith(".jpg")) return "image/jpeg";
+        if (name.endsWith(".png")) return "image/png";
+        return null;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Renders are read only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Renders are read only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Renders are read only");
+    }
+}
@@ -0,0 +1,113 @@
+package snoof.widget.photo;
+
+import java.io.File;
+
+/**
+ * Identifies one finished widget render: which widget, at what size, with which shape, corner
+ * radius and crop, and from which version of the source photo. Any change to these inputs gives a
+ * new key, so a stale render can never be served for a newer configuration.
+ */
+public final class RenderKey {
+
+    /**
+     * Every extension a render file can have: the formats {@link ImageEncoder} writes, then
+     * the PNG of older versions. Each one probed costs a stat call, so the most common comes
+     * first.
+     */
+    public static final String[] EXTENSIONS = {".webp", ".jpg", ".png"};
+
+    public final int appWidgetId;
+    public final int width;
+    public final int height;
+    public final int radiusPercent;
+    public final String shape;
+    public final String crop;
+    public final String sourceVersion;
+
+    private final String settingsPrefix;
+    private final String name;
+
+    /**
+     * @param shape The {@link WidgetShape#key()} of the shape the render was cut to.
+     * @param crop The {@link CropSelection#key()} of the crop the render was made with.
+     */
+    public RenderKey(int appWidgetId, int width, int height, int radiusPercent, String shape, String crop,
+                     String sourceVersion) {
+        this.appWidgetId = appWidgetId;
+        this.width = width;
+        this.height = height;
+        this.radiusPercent = radiusPercent;
+        this.shape = shape;
+        this.crop = crop;
+        this.sourceVersion = sourceVersion;
+        this.settingsPrefix = widgetPrefix(appWidgetId) + width + "x" + height + "_r" + radiusPercent
+                + "_" + shape + "_" + crop + "_";
+        this.name = settingsPrefix + sourceVersion;
+    }
+
+    /**
+     * Prefix shared by every render of the given widget, used to drop all of them at once.
+     */
+    public static String widgetPrefix(int appWidgetId) {
+        return "w" + appWidgetId + "_";
+    }
+
+    /**
+     * Prefix shared by every render of this widget with the same size, shape, radius and crop,
+     * only the source photo differs. Album frames of one widget share it.
+     */
+    public String settingsPrefix() {
+        return settingsPrefix;
+    }
+
+    /**
+     * Reads the widget id back out of a key name, or a file named after one.
+     *
+     * @return The widget id, or -1 if the name was not made by this class.
+     */
+    public static int parseWidgetId(String name) {
+        int end = name.indexOf('_');
+        if (!name.startsWith("w") || end < 2) return -1;
+        try {
+            return Integer.parseInt(name.substring(1, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The key as a file system safe string, the name of its render file in the disk cache
+     * without the extension.
+     */
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Finds the render of this key in a directory, trying {@link #EXTENSIONS} in order.
+     *
+     * @return The file, or null if none of them exists.
+     */
+    public File findIn(File dir) {
+        for (String extension : EXTENSIONS) {
+            File file = new File(dir, name + extension);
+            if (file.exists()) return file;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof RenderKey && ((RenderKey) o).name.equals(name);
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,293 @@
+package snoof.widget.photo;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.LruCache;
+
+import java.io.File;
+
+/**
+ * The one path a photo takes to become a widget image, shared by the picker and the provider:
+ * decode, scale (and crop), cut to shape, encode. The first two stages remember their last results,
+ * keyed by everything they depend on, so a change only redoes the stages after it:
+ * <ul>
+ *     <li>a new radius or shape reuses the scaled photo and only cuts and encodes again,</li>
+ *     <li>a resize or a new crop reuses the decoded photo as long as it has enough pixels,</li>
+ *     <li>a new photo starts from the file.</li>
+ * </ul>
+ * Shaping and encoding are remembered by {@link RenderCache}, on disk.
+ *
+ * Bitmaps returned by {@link #decode} and {@link #scale} are shared: callers must neither
+ * draw into nor recycle them. {@link #render} returns a Bitmap owned by the caller.
+ */
+public final class RenderPipeline {
+
+    // Sized in kilobytes. A decoded photo is about screen sized, so this holds a few of them;
+    // on a large screen one can be bigger than the whole share, see oversized.
+    private static final LruCache<String, Decoded> decodedCache =
+            new LruCache<String, Decoded>(BitmapPool.shareKb(8)) {
+                @Override
+                protected int sizeOf(String key, Decoded decoded) {
+                    return decoded.bitmap.getAllocationByteCount() / 1024;
+                }
+            };
+
+    // The newest decode when it is bigger than decodedCache's whole share, which LruCache
+    // would drop on insert. One at most, BitmapPool.fitSampleSize keeps it within half the
+    // budget. Guarded by decodedCache.
+    private static String oversizedKey;
+    private static Decoded oversized;
+
+    // Widget sized, one per size, crop and pixel format in use
+    private static final LruCache<String, Bitmap> scaledCache =
+            new LruCache<String, Bitmap>(BitmapPool.shareKb(16)) {
+                @Override
+                protected int sizeOf(String key, Bitmap bitmap) {
+                    return bitmap.getAllocationByteCount() / 1024;
+                }
+            };
+
+    private static final Paint FILTER_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private RenderPipeline() {}
+
+    /**
+     * A decoded photo and the box it was decoded for. It has enough pixels for any box
+     * that fits inside that one.
+     */
+    private static final class Decoded {
+        final Bitmap bitmap;
+        final int boxWidth;
+        final int boxHeight;
+
+        Decoded(Bitmap bitmap, int boxWidth, int boxHeight) {
+            this.bitmap = bitmap;
+            this.boxWidth = boxWidth;
+            this.boxHeight = boxHeight;
+        }
+
+        boolean covers(int width, int height) {
+            return width <= boxWidth && height <= boxHeight;
+        }
+    }
+
+    /**
+     * Renders a photo for a widget: all four stages except the encode, which is
+     * {@link RenderCache#putFile}.
+     *
+     * @return The finished render, owned by the caller, or null if the file could not be decoded.
+     */
+    public static Bitmap render(File file, CropSelection crop, WidgetShape shape, RenderKey key) {
+        Bitmap scaled = scale(file, crop, key.width, key.height,
+                BitmapProcessor.renderConfig(shape, key.radiusPercent));
+        if (scaled == null) return null;
+        return cut(scaled, shape, key.radiusPercent);
+    }
+
+    /**
+     * Stage 1: the upright photo fitted inside reqWidth x reqHeight. Served from memory when
+     * the same file was decoded for a box at least as big.
+     *
+     * @return A shared Bitmap, or null if the file could not be decoded.
+     */
+    public static Bitmap decode(File file, int reqWidth, int reqHeight) {
+        String key = fileKey(file);
+        Decoded decoded = findDecoded(key);
+        if (decoded != null && decoded.covers(reqWidth, reqHeight)) {
+            return decoded.bitmap;
+        }
+
+        Bitmap bitmap = BitmapProcessor.decodeSampledBitmap(file, reqWidth, reqHeight);
+        if (bitmap == null) return null;
+        // Replaces a smaller decode of the same file, the new one serves every box the old one did
+        keepDecoded(key, new Decoded(bitmap, reqWidth, reqHeight));
+        return bitmap;
+    }
+
+    private static Decoded findDecoded(String key) {
+        Decoded decoded = decodedCache.get(key);
+        if (decoded == null) {
+            synchronized (decodedCache) {
+                if (key.equals(oversizedKey)) decoded = oversized;
+            }
+        }
+        return decoded != null && !decoded.bitmap.isRecycled() ? decoded : null;
+    }
+
+    private static void keepDecoded(String key, Decoded decoded) {
+        int sizeKb = decoded.bitmap.getAllocationByteCount() / 1024;
+        synchronized (decodedCache) {
+            if (sizeKb > decodedCache.maxSize()) {
+                // Reusing the last decode is the point of this stage, keep it outside the cache
+                decodedCache.remove(key);
+                oversizedKey = key;
+                oversized = decoded;
+                return;
+            }
+            if (key.equals(oversizedKey)) dropOversized();
+        }
+        decodedCache.put(key, decoded);
+    }
+
+    /**
+     * Stage 2: the crop of the photo scaled to fit width x height, in the given pixel format.
+     * Built from the decoded photo when it has enough pixels for the crop, otherwise only
+     * the cropped region is read from the file. An opaque render with no decoded photo to
+     * reuse reads the file straight into RGB_565, see decodeOpaque.
+     *
+     * @return A shared Bitmap, or null if the file could not be decoded.
+     */
+    public static Bitmap scale(File file, CropSelection crop, int width, int height, Bitmap.Config config) {
+        String key = fileKey(file) + "_" + width + "x" + height + "_" + crop.key() + "_" + config;
+        Bitmap scaled = scaledCache.get(key);
+        if (scaled != null && !scaled.isRecycled()) return scaled;
+
+        Bitmap source;
+        // Whether source is a decode of our own rather than one shared with the decode stage
+        boolean owned = false;
+        if (crop.enabled) {
+            Decoded decoded = findDecoded(fileKey(file));
+            source = decoded != null ? decoded.bitmap : null;
+        } else if (config == Bitmap.Config.RGB_565 && !hasDecoded(file, width, height)) {
+            source = decodeOpaque(file, width, height);
+            if (source == null) return null;
+            owned = source.getConfig() == Bitmap.Config.RGB_565;
+        } else {
+            source = decode(file, width, height);
+            if (source == null) return null;
+        }
+
+        long start = RenderStats.begin(RenderStats.Stage.SCALE);
+        try {
+            scaled = source != null ? scaleFrom(source, crop, width, height, config) : null;
+        } finally {
+            RenderStats.end(RenderStats.Stage.SCALE, start);
+        }
+        if (owned && scaled != source) BitmapPool.release(source);
+        if (scaled == null) {
+            // Zoomed in further than the decoded photo can show sharply
+            scaled = BitmapProcessor.decodeCroppedBitmap(file, crop, width, height, config);
+            if (scaled == null) return null;
+        }
+        // The decoded photo itself when it already had the right size; unless it is our own,
+        // it is kept by the decode stage and would count twice against the budget here
+        if (owned || scaled != source) scaledCache.put(key, scaled);
+        return scaled;
+    }
+
+    private static boolean hasDecoded(File file, int width, int height) {
+        Decoded decoded = findDecoded(fileKey(file));
+        return decoded != null && decoded.covers(width, height);
+    }
+
+    /**
+     * Decodes a photo for an opaque render straight into RGB_565, half the memory of the
+     * ARGB_8888 decode the picker shares. A format that may carry alpha still decodes to
+     * ARGB_8888; that decode is as good as any other, so the decode stage keeps it.
+     */
+    private static Bitmap decodeOpaque(File file, int width, int height) {
+        Bitmap bitmap = BitmapProcessor.decodeSampledBitmap(file, width, height, Bitmap.Config.RGB_565);
+        if (bitmap != null && bitmap.getConfig() != Bitmap.Config.RGB_565) {
+            keepDecoded(fileKey(file), new Decoded(bitmap, width, height));
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stage 3: a copy of a scaled photo cut to a shape. A plain rectangle keeps the source format.
+     *
+     * @return A new Bitmap owned by the caller.
+     */
+    public static Bitmap cut(Bitmap scaled, WidgetShape shape, int radiusPercent) {
+        boolean opaque = BitmapProcessor.renderConfig(shape, radiusPercent) == Bitmap.Config.RGB_565;
+        Bitmap copy = BitmapPool.obtain(scaled.getWidth(), scaled.getHeight(),
+                opaque ? scaled.getConfig() : Bitmap.Config.ARGB_8888);
+        new Canvas(copy).drawBitmap(scaled, 0, 0, null);
+        copy.setHasAlpha(scaled.hasAlpha() || !opaque);
+        return BitmapProcessor.applyShape(copy, shape, radiusPercent);
+    }
+
+    /**
+     * Cuts the crop out of a decoded photo and scales it in one draw.
+     *
+     * @return The new Bitmap, the source itself when nothing changes, or null when the
+     * cropped region has fewer pixels than the result needs.
+     */
+    private static Bitmap scaleFrom(Bitmap source, CropSelection crop, int width, int height, Bitmap.Config config) {
+        int[] region = new int[4];
+        crop.computeRegion(source.getWidth(), source.getHeight(), width, height, region);
+        int regionWidth = region[2] - region[0];
+        int regionHeight = region[3] - region[1];
+        float scale = ImageSizing.calculateTargetScale(regionWidth, regionHeight, width, height);
+        if (crop.enabled && regionWidth * scale < width - 1 && regionHeight * scale < height - 1) {
+            return null;
+        }
+
+        // Opaque output only for an opaque photo, a transparent PNG keeps its alpha
+        if (config == Bitmap.Config.RGB_565 && source.hasAlpha()) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        int outWidth = Math.max(1, Math.round(regionWidth * scale));
+        int outHeight = Math.max(1, Math.round(regionHeight * scale));
+        if (outWidth == source.getWidth() && outHeight == source.getHeight() && config == source.getConfig()) {
+            return source;
+        }
+
+        Bitmap scaled = BitmapPool.obtain(outWidth, outHeight, config);
+        new Canvas(scaled).drawBitmap(source, new Rect(region[0], region[1], region[2], region[3]),
+                new Rect(0, 0, outWidth, outHeight), FILTER_PAINT);
+        return scaled;
+    }
+
+    /**
+     * Drops scaled photos, least recently used first, to free about the given number of
+     * bytes. See {@link BitmapPool}.
+     *
+     * @return The bytes freed.
+     */
+    static long trimScaled(long bytes) {
+        return BitmapPool.trimCache(scaledCache, bytes);
+    }
+
+    /**
+     * Same as {@link #trimScaled(long)} for the decoded photos. The oversized decode goes
+     * last.
+     */
+    static long trimDecoded(long bytes) {
+        long freed = BitmapPool.trimCache(decodedCache, bytes);
+        if (freed < bytes) {
+            synchronized (decodedCache) {
+                freed += dropOversized();
+            }
+        }
+        return freed;
+    }
+
+    static long memoryBytes() {
+        long oversizedBytes;
+        synchronized (decodedCache) {
+            oversizedBytes = oversized != null ? oversized.bitmap.getAllocationByteCount() : 0;
+        }
+        return (decodedCache.size() + scaledCache.size()) * 1024L + oversizedBytes;
+    }
+
+    /**
+     * Forgets the oversized decode. Shared, so it is dropped rather than recycled. Call
+     * while holding decodedCache.
+     *
+     * @return The bytes it took.
+     */
+    private static long dropOversized() {
+        long bytes = oversized != null ? oversized.bitmap.getAllocationByteCount() : 0;
+        oversizedKey = null;
+        oversized = null;
+        return bytes;
+    }
+
+    private static String fileKey(File file) {
+        // Sources are never rewritten in place, a new timestamp means a new photo
+        return file.getAbsolutePath() + "@" + file.lastModified();
+    }
+}
@@ -0,0 +1,195 @@
+package snoof.widget.photo;
+
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process wide timings and counters for the widget render path.
+ * Every stage keeps a latency histogram with power of two buckets in microseconds, so
+ * recording is a few atomic adds with no allocation. Each timed section is also emitted as
+ * an android.os.Trace section, which shows up in system traces taken from the device.
+ *
+ * Usage:
+ * <pre>
+ * long start = RenderStats.begin(RenderStats.Stage.DECODE);
+ * try { ... } finally { RenderStats.end(RenderStats.Stage.DECODE, start); }
+ * </pre>
+ * The collected numbers are printed by {@link #dump(PrintWriter)}, see the Snoof activity.
+ */
+public final class RenderStats {
+
+    public enum Stage {
+        /** A whole updateAppWidget call, from settings to push. */
+        RENDER("Snoof:render"),
+        DECODE("Snoof:decode"),
+        /** Cropping and scaling a decoded photo to the widget size. */
+        SCALE("Snoof:scale"),
+        ROUND("Snoof:round"),
+        ENCODE("Snoof:encode"),
+        /** Reading a finished render back from the disk cache. */
+        CACHE_READ("Snoof:cacheRead"),
+        /** Copying a picked photo into the source store. */
+        FILE_IO("Snoof:fileIo"),
+        /** The AppWidgetManager.updateAppWidget binder call. */
+        PUSH("Snoof:push"),
+        /** One slider frame in the picker preview. */
+        PREVIEW("Snoof:preview");
+
+        final String traceName;
+
+        Stage(String traceName) {
+            this.traceName = traceName;
+        }
+    }
+
+    // Bucket i holds durations below 2^i microseconds, the last one everything above ~16 s
+    private static final int BUCKETS = 25;
+
+    private static final int STAGES = Stage.values().length;
+    private static final AtomicLongArray histograms = new AtomicLongArray(STAGES * BUCKETS);
+    private static final AtomicLongArray totalMicros = new AtomicLongArray(STAGES);
+    private static final AtomicLongArray maxMicros = new AtomicLongArray(STAGES);
+
+    private static final AtomicLong bytesDecoded = new AtomicLong();
+    private static final AtomicLong bytesWritten = new AtomicLong();
+    private static final AtomicLong peakBitmapBytes = new AtomicLong();
+    private static final AtomicLong diskHits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private RenderStats() {}
+
+    /**
+     * Starts timing a stage and opens its trace section.
+     *
+     * @return The start time to hand to {@link #end(Stage, long)}.
+     */
+    public static long begin(Stage stage) {
+        Trace.beginSection(stage.traceName);
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Closes the trace section opened by {@link #begin(Stage)} and records the duration.
+     * Must be called on the same thread, in reverse order of nested begin calls.
+     */
+    public static void end(Stage stage, long startNanos) {
+        long micros = (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000;
+        Trace.endSection();
+
+        int index = stage.ordinal();
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        histograms.incrementAndGet(index * BUCKETS + bucket);
+        totalMicros.addAndGet(index, micros);
+
+        long max;
+        do {
+            max = maxMicros.get(index);
+        } while (micros > max && !maxMicros.compareAndSet(index, max, micros));
+    }
+
+    /**
+     * Records the size of a freshly decoded Bitmap.
+     */
+    public static void recordDecoded(long bytes) {
+        bytesDecoded.addAndGet(bytes);
+        recordBitmap(bytes);
+    }
+
+    /**
+     * Records the size of a Bitmap held by the render path, keeping the largest one seen.
+     */
+    public static void recordBitmap(long bytes) {
+        long peak;
+        do {
+            peak = peakBitmapBytes.get();
+        } while (bytes > peak && !peakBitmapBytes.compareAndSet(peak, bytes));
+    }
+
+    public static void recordWritten(long bytes) {
+        bytesWritten.addAndGet(bytes);
+    }
+
+    /**
+     * Bytes of sources and renders written to disk since the last {@link #reset()}.
+     */
+    public static long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public static void recordDiskHit() {
+        diskHits.incrementAndGet();
+    }
+
+    public static void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     * Prints every stage with its count, mean, percentiles and max, followed by the
+     * counters. Percentiles are the upper bound of the bucket they fall in.
+     */
+    public static void dump(PrintWriter writer) {
+        writer.println("Render stats (ms)");
+        writer.println(String.format("  %-11s %7s %9s %9s %9s %9s %9s",
+                "stage", "count", "mean", "p50", "p90", "p99", "max"));
+
+        for (Stage stage : Stage.values()) {
+            int index = stage.ordinal();
+            long[] buckets = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = histograms.get(index * BUCKETS + i);
+                count += buckets[i];
+            }
+            if (count == 0) continue;
+
+            writer.println(String.format("  %-11s %7d %9.2f %9.2f %9.2f %9.2f %9.2f",
+                    stage.name().toLowerCase(), count,
+                    totalMicros.get(index) / 1000.0 / count,
+                    percentile(buckets, count, 0.50),
+                    percentile(buckets, count, 0.90),
+                    percentile(buckets, count, 0.99),
+                    maxMicros.get(index) / 1000.0));
+        }
+
+        long lookups = diskHits.get() + misses.get();
+        writer.println(String.format("Render cache: %d hits, %d misses (%.1f%% hit rate)",
+                diskHits.get(), misses.get(),
+                lookups == 0 ? 0.0 : 100.0 * (lookups - misses.get()) / lookups));
+        writer.println(String.format("Bytes decoded: %d KB, bytes written: %d KB, peak bitmap: %d KB",
+                bytesDecoded.get() / 1024, bytesWritten.get() / 1024, peakBitmapBytes.get() / 1024));
+        writer.flush();
+    }
+
+    /**
+     * Clears every histogram and counter.
+     */
+    public static void reset() {
+        for (int i = 0; i < histograms.length(); i++) histograms.set(i, 0);
+        for (int i = 0; i < STAGES; i++) {
+            totalMicros.set(i, 0);
+            maxMicros.set(i, 0);
+        }
+        bytesDecoded.set(0);
+        bytesWritten.set(0);
+        peakBitmapBytes.set(0);
+        diskHits.set(0);
+        misses.set(0);
+    }
+
+    private static double percentile(long[] buckets, long count, double fraction) {
+        long rank = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return (1L << i) / 1000.0;
+            }
+        }
+        return (1L << (BUCKETS - 1)) / 1000.0;
+    }
+}
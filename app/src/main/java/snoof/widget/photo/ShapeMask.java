@@ -0,0 +1,136 @@
+package snoof.widget.photo;
+
+import java.util.Arrays;
+
+/**
+ * Anti-aliased alpha mask of a {@link WidgetShape} at one size. Coverage is computed once,
+ * from {@link #SUBSAMPLES} scanlines per row with exact horizontal coverage, and then
+ * applying the mask is a single pass of lookups and multiplies. A mask is immutable, so
+ * one instance can be shared by every widget of the same size and shape.
+ *
+ * Pixels are plain non-premultiplied ARGB ints, as with {@link RoundedCornerKernel}.
+ */
+public final class ShapeMask {
+
+    private static final int SUBSAMPLES = 4;
+
+    public final int width;
+    public final int height;
+    // Coverage per pixel, 0 to 255 stored as unsigned bytes
+    private final byte[] coverage;
+    // Per row, the first and one past the last pixel that is not fully covered,
+    // everything outside that range is left as it is
+    private final int[] rowStart;
+    private final int[] rowEnd;
+
+    private ShapeMask(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.coverage = new byte[width * height];
+        this.rowStart = new int[height];
+        this.rowEnd = new int[height];
+    }
+
+    /**
+     * Builds the mask of a shape for an image of the given size.
+     */
+    public static ShapeMask create(WidgetShape shape, int width, int height, int radiusPercent) {
+        ShapeMask mask = new ShapeMask(width, height);
+        float[] spans = new float[shape.maxSpans() * 2];
+        float[] row = new float[width + 1];
+        float[] runs = new float[width + 1];
+        float weight = 1f / SUBSAMPLES;
+
+        for (int y = 0; y < height; y++) {
+            Arrays.fill(row, 0f);
+            Arrays.fill(runs, 0f);
+            for (int s = 0; s < SUBSAMPLES; s++) {
+                int count = shape.spans(y + (s + 0.5f) / SUBSAMPLES, width, height, radiusPercent, spans);
+                for (int i = 0; i < count; i++) {
+                    addSpan(row, runs, spans[i * 2], spans[i * 2 + 1], width, weight);
+                }
+            }
+
+            // Whole pixels inside a span were added as a run, sum them up
+            int offset = y * width;
+            int start = width;
+            int end = 0;
+            float run = 0f;
+            for (int x = 0; x < width; x++) {
+                run += runs[x];
+                int value = Math.round(Math.max(0f, Math.min(1f, row[x] + run)) * 255f);
+                mask.coverage[offset + x] = (byte) value;
+                if (value != 255) {
+                    if (x < start) start = x;
+                    end = x + 1;
+                }
+            }
+            mask.rowStart[y] = start;
+            mask.rowEnd[y] = Math.max(start, end);
+        }
+        return mask;
+    }
+
+    /**
+     * Adds the part of one scanline between left and right to the row's coverage. Partly
+     * covered pixels at either end get their share, whole pixels in between are recorded as
+     * a run start and end so a long span costs no more than a short one.
+     */
+    private static void addSpan(float[] row, float[] runs, float left, float right, int width, float weight) {
+        left = Math.max(0f, left);
+        right = Math.min(width, right);
+        if (right <= left) return;
+
+        int first = (int) left;
+        int last = (int) right;
+        if (first == last) {
+            row[first] += (right - left) * weight;
+            return;
+        }
+        row[first] += (first + 1 - left) * weight;
+        runs[first + 1] += weight;
+        runs[last] -= weight;
+        if (last < width) row[last] += (right - last) * weight;
+    }
+
+    /**
+     * Applies the mask to rows of an image held in a buffer, scaling each pixel's alpha by
+     * its coverage.
+     *
+     * @param pixels Buffer holding the rows, width pixels each.
+     * @param offset Index of the first pixel of row y0 in the buffer.
+     * @param stride Number of ints between two rows in the buffer.
+     * @param y0 The image row the buffer starts at.
+     * @param rows Number of rows in the buffer.
+     */
+    public void apply(int[] pixels, int offset, int stride, int y0, int rows) {
+        for (int j = 0; j < rows; j++) {
+            int y = y0 + j;
+            int start = rowStart[y];
+            int end = rowEnd[y];
+            int line = offset + j * stride;
+            int maskLine = y * width;
+
+            for (int x = start; x < end; x++) {
+                int cov = coverage[maskLine + x] & 0xff;
+                if (cov == 255) continue;
+
+                int index = line + x;
+                if (cov == 0) {
+                    pixels[index] = 0;
+                } else {
+                    int argb = pixels[index];
+                    int alpha = ((argb >>> 24) * cov + 127) / 255;
+                    pixels[index] = (alpha << 24) | (argb & 0x00ffffff);
+                }
+            }
+        }
+    }
+
+    /**
+     * Memory held by the mask, for sizing caches.
+     */
+    public int byteCount() {
+        return coverage.length + (rowStart.length + rowEnd.length) * 4;
+    }
+}
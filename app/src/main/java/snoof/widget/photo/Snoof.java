@@ -1,6 +1,106 @@
 package snoof.widget.photo;
 
+import android.graphics.Typeface;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.LinearLayout;
+import android.widget.ScrollView;
+import android.widget.Spinner;
+import android.widget.TextView;
+
 import androidx.appcompat.app.AppCompatActivity;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.function.IntConsumer;
+
+/**
+ * Shows the render timings collected by {@link RenderStats} for this process, below the
+ * storage settings: the {@link ImageEncoder.Policy} renders are written with and the disk
+ * budget {@link StorageReconciler} holds them to.
+ * Start it with the snoof.widget.IDENTIFIER action, or pull the same text from a device with
+ * adb shell dumpsys activity snoof.widget.photo/.Snoof while it is open.
+ */
 public class Snoof extends AppCompatActivity {
+
+    private static final int[] RENDER_BUDGETS_MB = {16, 32, 64, 128, 256};
+
+    private TextView statsText;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        LinearLayout layout = new LinearLayout(this);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        layout.addView(createPolicySpinner());
+        layout.addView(createBudgetSpinner());
+
+        statsText = new TextView(this);
+        statsText.setTypeface(Typeface.MONOSPACE);
+        layout.addView(statsText);
+
+        ScrollView scrollView = new ScrollView(this);
+        scrollView.addView(layout);
+        setContentView(scrollView);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        StringWriter text = new StringWriter();
+        RenderStats.dump(new PrintWriter(text));
+        statsText.setText(text.toString());
+    }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        RenderStats.dump(writer);
+    }
+
+    private Spinner createPolicySpinner() {
+        ImageEncoder.Policy[] policies = ImageEncoder.Policy.values();
+        String[] labels = new String[policies.length];
+        for (int i = 0; i < policies.length; i++) {
+            labels[i] = "Encode renders for " + policies[i].name().toLowerCase();
+        }
+        // Renders already on disk keep their format, new ones use the new policy
+        return createSpinner(labels, ImageEncoder.getPolicy(this).ordinal(),
+                position -> ImageEncoder.setPolicy(this, policies[position]));
+    }
+
+    private Spinner createBudgetSpinner() {
+        long currentMb = StorageReconciler.getRenderBudget(this) / 1024 / 1024;
+        String[] labels = new String[RENDER_BUDGETS_MB.length];
+        int selected = 0;
+        for (int i = 0; i < RENDER_BUDGETS_MB.length; i++) {
+            labels[i] = "Keep up to " + RENDER_BUDGETS_MB[i] + " MB of renders";
+            if (RENDER_BUDGETS_MB[i] <= currentMb) selected = i;
+        }
+        // A smaller budget takes effect at the next trim, renders are not deleted right away
+        return createSpinner(labels, selected,
+                position -> StorageReconciler.setRenderBudget(this, RENDER_BUDGETS_MB[position]));
+    }
+
+    private Spinner createSpinner(String[] labels, int selected, IntConsumer onSelected) {
+        Spinner spinner = new Spinner(this);
+        ArrayAdapter<String> adapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, labels);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        spinner.setAdapter(adapter);
+        spinner.setSelection(selected);
+        spinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                // Also called once for the initial selection, saving the same value is harmless
+                onSelected.accept(position);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {}
+        });
+        return spinner;
+    }
 }
@@ -0,0 +1,31 @@
+package snoof.widget.photo;
+
+import android.app.Application;
+
+/**
+ * Sizes the bitmap caches for this device before any of them are used, and passes the
+ * system's memory pressure on to them. See {@link BitmapPool}. Also starts reading the
+ * widget states and the global settings, so the first update after the process starts finds
+ * them in memory.
+ */
+public class SnoofApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        BitmapPool.init(this);
+        WidgetStateStore.preload(this);
+        WidgetUpdateScheduler.execute(() -> {
+            ImageEncoder.getPolicy(this);
+            StorageReconciler.preload(this);
+        });
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        BitmapPool.onTrimMemory(level);
+        // In the background the process can be killed before the write delay runs out
+        if (level >= TRIM_MEMORY_BACKGROUND) WidgetStateStore.flush();
+    }
+}
@@ -0,0 +1,246 @@
+package snoof.widget.photo;
+
+import android.content.Context;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Stores the untouched photos picked for widgets, once per distinct content.
+ * Files are named after the SHA-256 of their bytes, so putting the same photo on several
+ * widgets keeps a single copy. Each widget's {@link WidgetState} records the hash it shows
+ * and the hashes of its album. Those are the references: a file is deleted once no widget
+ * state mentions it anymore, so there is no separate count to keep in step.
+ * Between an import and the assign that records its hash nothing refers to the file, so a
+ * file imported less than {@link #IMPORT_GRACE_MS} ago is never deleted. Importing bytes
+ * that are already stored renews the file's time for the same reason.
+ * Rounding never happens here, it is done at render time.
+ */
+public class SourceImageStore {
+
+    private static final String TAG = "SourceImageStore";
+    private static final String SOURCE_DIR = "sources";
+    // How long an import may take to be assigned, see the class comment
+    private static final long IMPORT_GRACE_MS = 60 * 60 * 1000L;
+
+    private SourceImageStore() {}
+
+    /**
+     * Copies the picked photo into the store and returns its content hash. If the same bytes
+     * are already stored the copy is discarded and the existing file is reused.
+     *
+     * @throws IOException If the Uri cannot be read or the file cannot be written.
+     */
+    public static String importFromUri(Context context, Uri uri) throws IOException {
+        File dir = getSourceDir(context);
+        File tmp = File.createTempFile("import", ".tmp", dir);
+        String hash;
+
+        long start = RenderStats.begin(RenderStats.Stage.FILE_IO);
+        try (InputStream in = context.getContentResolver().openInputStream(uri)) {
+            if (in == null) throw new IOException("Cannot open " + uri);
+            hash = copyAndHash(in, tmp);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        } finally {
+            RenderStats.end(RenderStats.Stage.FILE_IO, start);
+        }
+        RenderStats.recordWritten(tmp.length());
+        return commitImport(dir, tmp, hash);
+    }
+
+    /**
+     * Moves a pic_<id>.png written by older versions into the store and points the widget at
+     * it. The bytes are kept as they are, re-encoding them would lose quality for good. They
+     * are already rounded, so {@link WidgetStateStore} started the widget at radius 0. Runs
+     * lazily the first time such a widget is rendered.
+     *
+     * @return The stored source file, or null if there was nothing to migrate.
+     */
+    public static synchronized File migrateLegacyFile(Context context, int appWidgetId) {
+        File legacy = new File(context.getDir("imgDir", Context.MODE_PRIVATE), "pic_" + appWidgetId + ".png");
+        if (!legacy.exists()) return null;
+
+        // Only the header is read, the render decodes it at the size it needs
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(legacy.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.e(TAG, "Dropping unreadable legacy file " + legacy.getName());
+            legacy.delete();
+            return null;
+        }
+
+        File dir = getSourceDir(context);
+        try {
+            File tmp = File.createTempFile("import", ".tmp", dir);
+            String hash;
+            try (InputStream in = new FileInputStream(legacy)) {
+                hash = copyAndHash(in, tmp);
+            } catch (IOException e) {
+                tmp.delete();
+                throw e;
+            }
+            RenderStats.recordWritten(tmp.length());
+            hash = commitImport(dir, tmp, hash);
+
+            assign(context, appWidgetId, hash);
+            legacy.delete();
+            return new File(dir, hash);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to migrate " + legacy.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static synchronized String commitImport(File dir, File tmp, String hash) throws IOException {
+        File target = new File(dir, hash);
+        // Same photo as one already on another widget. Make it young again, or a release of
+        // that widget could delete it before this import is assigned. Where the time cannot be
+        // set, the fresh copy replaces the file instead.
+        if (target.exists() && target.setLastModified(System.currentTimeMillis())) {
+            tmp.delete();
+        } else if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("Cannot store source " + hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Points a widget at a stored source, releasing the one the widget previously showed.
+     */
+    public static synchronized void assign(Context context, int appWidgetId, String hash) {
+        String previous = getHash(context, appWidgetId);
+        if (hash.equals(previous)) return;
+
+        WidgetStateStore.update(context, appWidgetId, state -> state.withSourceHash(hash));
+        if (previous != null) {
+            releaseHash(context, previous);
+        }
+    }
+
+    /**
+     * Deletes a stored source unless some widget still shows it or has it in its album.
+     * Called by whoever just dropped a reference to it from a widget's state. A file imported
+     * recently is left for {@link #deleteUnreferenced(Context)}.
+     */
+    public static synchronized void releaseHash(Context context, String hash) {
+        if (WidgetStateStore.isInUse(context, hash)) return;
+
+        File file = new File(getSourceDir(context), hash);
+        if (isRecentImport(file)) return;
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "Failed to delete unused source " + hash);
+        }
+    }
+
+    /**
+     * Forgets the source of a widget and drops its reference. The file is deleted once no
+     * widget uses it anymore.
+     */
+    public static synchronized void release(Context context, int appWidgetId) {
+        String hash = getHash(context, appWidgetId);
+        if (hash == null) return;
+
+        WidgetStateStore.update(context, appWidgetId, state -> state.withSourceHash(null));
+        releaseHash(context, hash);
+    }
+
+    /**
+     * Returns the content hash shown by a widget, or null if it has none.
+     */
+    public static String getHash(Context context, int appWidgetId) {
+        return WidgetStateStore.get(context, appWidgetId).sourceHash;
+    }
+
+    /**
+     * Returns the untouched source photo of a widget, or null if it has none.
+     */
+    public static File getSourceFile(Context context, int appWidgetId) {
+        String hash = getHash(context, appWidgetId);
+        if (hash == null) return null;
+
+        File file = new File(getSourceDir(context), hash);
+        return file.exists() ? file : null;
+    }
+
+    /**
+     * Returns the stored file for a content hash. The file only exists while some widget
+     * state refers to it, or right after {@link #importFromUri(Context, Uri)}.
+     */
+    public static File getFileForHash(Context context, String hash) {
+        return new File(getSourceDir(context), hash);
+    }
+
+    /**
+     * Deletes stored files no widget state points at, such as photos restored from a backup
+     * without their widgets, and imports that never completed or were never assigned.
+     * Recent imports are kept, they may be about to be assigned.
+     *
+     * @return The number of files deleted.
+     */
+    public static synchronized int deleteUnreferenced(Context context) {
+        File[] files = getSourceDir(context).listFiles();
+        if (files == null) return 0;
+
+        int deleted = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (isRecentImport(file)) continue;
+            boolean unused = name.endsWith(".tmp") || !WidgetStateStore.isInUse(context, name);
+            if (unused && file.delete()) {
+                Log.d(TAG, "Deleted unreferenced source " + name);
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private static boolean isRecentImport(File file) {
+        long age = System.currentTimeMillis() - file.lastModified();
+        // A clock set backwards counts as recent
+        return age < IMPORT_GRACE_MS;
+    }
+
+    private static String copyAndHash(InputStream in, File target) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        try (DigestInputStream din = new DigestInputStream(in, digest);
+             OutputStream out = new FileOutputStream(target)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = din.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static File getSourceDir(Context context) {
+        File dir = new File(context.getDir("imgDir", Context.MODE_PRIVATE), SOURCE_DIR);
+        if (!dir.exists()) dir.mkdirs();
+        return dir;
+    }
+}
@@ -0,0 +1,190 @@
+package snoof.widget.photo;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps what is stored on disk in line with the widgets that actually exist.
+ * onDeleted is the only regular cleanup, and it is missed when a widget is removed while the
+ * app is stopped or the launcher drops the broadcast; a restored backup can also bring
+ * files and settings for widget ids that are long gone. A reconciliation pass compares the
+ * stored files and widget states against AppWidgetManager and removes whatever belongs to no
+ * widget. It runs at most every {@link #MIN_INTERVAL_MS}.
+ *
+ * The rendered images also get a byte budget, enforced least recently written first.
+ * Renders are derived data and can always be made again; the source photos are the only
+ * copy the app has and are never evicted for space, only deleted once nothing uses them.
+ */
+public final class StorageReconciler {
+
+    private static final String TAG = "StorageReconciler";
+    private static final String PREFS_NAME = "PhotoWidgetPrefs";
+    private static final String PREF_LAST_RUN_KEY = "reconcile_last_run";
+    private static final String PREF_RENDER_BUDGET_KEY = "render_budget_mb";
+
+    private static final long MIN_INTERVAL_MS = 6 * 60 * 60 * 1000L;
+    private static final int DEFAULT_RENDER_BUDGET_MB = 64;
+
+    // Bytes of renders written since the budget was last checked
+    private static final AtomicLong writtenSinceTrim = new AtomicLong();
+
+    // Both read on every update, kept in memory once read from the preferences; -1 until then
+    private static volatile long lastRun = -1;
+    private static volatile long renderBudget = -1;
+
+    private StorageReconciler() {}
+
+    /**
+     * Reads the settings kept here into memory, so neither an update nor a render has to.
+     * Called on the update pool when the process starts, see {@link SnoofApplication}.
+     */
+    static void preload(Context context) {
+        getLastRun(context);
+        getRenderBudget(context);
+    }
+
+    /**
+     * Runs a reconciliation pass on the update pool unless one ran recently. Call it off the
+     * main thread, the first call reads the preferences.
+     */
+    public static void reconcileIfDue(Context context, AppWidgetManager appWidgetManager) {
+        Context appContext = context.getApplicationContext();
+        long last = getLastRun(appContext);
+        long now = System.currentTimeMillis();
+        // A clock set backwards counts as due
+        if (now >= last && now - last < MIN_INTERVAL_MS) return;
+
+        WidgetUpdateScheduler.execute(() -> reconcile(appContext, appWidgetManager));
+    }
+
+    /**
+     * Removes the files and states of widgets that no longer exist, deletes source
+     * photos nothing refers to, and trims the renders to the budget.
+     */
+    static synchronized void reconcile(Context context, AppWidgetManager appWidgetManager) {
+        int[] appWidgetIds = appWidgetManager.getAppWidgetIds(
+                new ComponentName(context, PhotoPickerWidgetProvider.class));
+        if (appWidgetIds.length == 0) {
+            // Also what a launcher that has not bound its widgets yet reports, so delete nothing
+            Log.d(TAG, "No widgets reported, skipping");
+            return;
+        }
+        Set<Integer> live = new HashSet<>();
+        for (int appWidgetId : appWidgetIds) {
+            live.add(appWidgetId);
+        }
+
+        Set<Integer> orphans = findStoredWidgetIds(context);
+        orphans.removeAll(live);
+        if (!orphans.isEmpty()) {
+            Log.d(TAG, "Widgets " + orphans + " no longer exist");
+            PhotoPickerWidgetProvider.deleteWidgetData(context,
+                    orphans.stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        int deleted = SourceImageStore.deleteUnreferenced(context);
+        long freed = trimRenders(context, appWidgetManager, appWidgetIds);
+        Log.d(TAG, "Removed " + orphans.size() + " orphaned widgets, " + deleted + " sources, "
+                + freed + " bytes of renders");
+
+        // Only a pass that got this far counts, an interrupted one runs again next time
+        lastRun = System.currentTimeMillis();
+        getPrefs(context).edit().putLong(PREF_LAST_RUN_KEY, lastRun).apply();
+    }
+
+    /**
+     * Called for every render written to disk. Once about a quarter of the budget has been
+     * written since the last check, the renders are trimmed on the update pool.
+     */
+    static void onRenderWritten(Context context, long bytes) {
+        long threshold = getRenderBudget(context) / 4;
+        if (writtenSinceTrim.addAndGet(bytes) < threshold) return;
+        writtenSinceTrim.set(0);
+
+        Context appContext = context.getApplicationContext();
+        WidgetUpdateScheduler.execute(() -> {
+            AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(appContext);
+            trimRenders(appContext, appWidgetManager, appWidgetManager.getAppWidgetIds(
+                    new ComponentName(appContext, PhotoPickerWidgetProvider.class)));
+        });
+    }
+
+    private static long getLastRun(Context context) {
+        if (lastRun < 0) lastRun = getPrefs(context).getLong(PREF_LAST_RUN_KEY, 0);
+        return lastRun;
+    }
+
+    /**
+     * The most the rendered images may take on disk, in bytes.
+     */
+    public static long getRenderBudget(Context context) {
+        if (renderBudget < 0) {
+            renderBudget = getPrefs(context).getInt(PREF_RENDER_BUDGET_KEY, DEFAULT_RENDER_BUDGET_MB) * 1024L * 1024L;
+        }
+        return renderBudget;
+    }
+
+    public static void setRenderBudget(Context context, int megabytes) {
+        int clamped = Math.max(1, megabytes);
+        renderBudget = clamped * 1024L * 1024L;
+        getPrefs(context).edit().putInt(PREF_RENDER_BUDGET_KEY, clamped).apply();
+    }
+
+    private static long trimRenders(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+        // What each widget shows right now is evicted last
+        Set<String> current = new HashSet<>();
+        for (int appWidgetId : appWidgetIds) {
+            String hash = SourceImageStore.getHash(context, appWidgetId);
+            if (hash == null) continue;
+            current.add(PhotoPickerWidgetProvider.getRenderKey(context, appWidgetManager, appWidgetId, hash)
+                    .name());
+        }
+        return RenderCache.trimToSize(context, getRenderBudget(context), current);
+    }
+
+    /**
+     * Every widget id something is stored for: states, legacy files and renders.
+     */
+    private static Set<Integer> findStoredWidgetIds(Context context) {
+        Set<Integer> ids = WidgetStateStore.getWidgetIds(context);
+
+        String[] legacyFiles = context.getDir("imgDir", Context.MODE_PRIVATE).list();
+        if (legacyFiles != null) {
+            for (String name : legacyFiles) {
+                int appWidgetId = parseId(name, "pic_", ".png");
+                if (appWidgetId != -1) ids.add(appWidgetId);
+            }
+        }
+
+        ids.addAll(RenderCache.getWidgetIds(context));
+        return ids;
+    }
+
+    /**
+     * Reads the id out of a name of the form prefix, id, suffix.
+     *
+     * @return The id, or -1 if the name does not have that form.
+     */
+    private static int parseId(String name, String prefix, String suffix) {
+        if (!name.startsWith(prefix) || !name.endsWith(suffix)
+                || name.length() <= prefix.length() + suffix.length()) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,248 @@
+package snoof.widget.photo;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The outline a widget image is cut to. A shape only describes which parts of a row lie
+ * inside it, as spans of x at a given y; {@link ShapeMask} turns that into an anti-aliased
+ * alpha mask. Built in shapes are listed in {@link #BUILT_IN}, any polygon can be used
+ * through {@link #fromPref(String)} with a "path:" value.
+ *
+ * Pure Java like {@link RoundedCornerKernel}, so masks can be built and checked on a plain JVM.
+ */
+public abstract class WidgetShape {
+
+    private static final String PATH_PREFIX = "path:";
+
+    /** The corner radius is the share of half the shortest side, as everywhere else. */
+    public static final WidgetShape ROUNDED_RECT = new WidgetShape("rounded", "Rounded", true) {
+        @Override
+        int spans(float y, int width, int height, int radiusPercent, float[] out) {
+            float radius = ImageSizing.calculateCornerRadius(width, height, radiusPercent);
+            float dy = Math.max(radius - y, y - (height - radius));
+            float inset = dy <= 0f ? 0f : radius - (float) Math.sqrt(Math.max(0f, radius * radius - dy * dy));
+            out[0] = inset;
+            out[1] = width - inset;
+            return 1;
+        }
+    };
+
+    /** The largest circle that fits, centred. The radius setting does not apply. */
+    public static final WidgetShape CIRCLE = new WidgetShape("circle", "Circle", false) {
+        @Override
+        int spans(float y, int width, int height, int radiusPercent, float[] out) {
+            float radius = Math.min(width, height) / 2f;
+            float dy = y - height / 2f;
+            if (Math.abs(dy) >= radius) return 0;
+            float half = (float) Math.sqrt(radius * radius - dy * dy);
+            out[0] = width / 2f - half;
+            out[1] = width / 2f + half;
+            return 1;
+        }
+    };
+
+    /**
+     * A superellipse filling the bounds, |x|^n + |y|^n = 1. The radius setting picks the
+     * exponent: 100% is an ellipse, lower values get closer to a rectangle.
+     */
+    public static final WidgetShape SQUIRCLE = new WidgetShape("squircle", "Squircle", true) {
+        @Override
+        int spans(float y, int width, int height, int radiusPercent, float[] out) {
+            double exponent = 2.0 + 8.0 * (100 - Math.max(0, Math.min(100, radiusPercent))) / 100.0;
+            double v = Math.abs(y - height / 2f) / (height / 2f);
+            if (v >= 1.0) return 0;
+            float half = (float) (width / 2.0 * Math.pow(1.0 - Math.pow(v, exponent), 1.0 / exponent));
+            out[0] = width / 2f - half;
+            out[1] = width / 2f + half;
+            return 1;
+        }
+    };
+
+    public static final WidgetShape HEART = new PathShape("heart", "Heart", heartOutline(), true);
+
+    /** In the order the picker lists them. */
+    public static final List<WidgetShape> BUILT_IN =
+            Arrays.asList(ROUNDED_RECT, CIRCLE, SQUIRCLE, HEART);
+
+    private final String key;
+    private final String label;
+    private final boolean usesRadius;
+
+    WidgetShape(String key, String label, boolean usesRadius) {
+        this.key = key;
+        this.label = label;
+        this.usesRadius = usesRadius;
+    }
+
+    /**
+     * Fills out with the spans of the shape at height y, as pairs of left and right x in
+     * pixels. The spans are sorted and do not overlap; they may reach outside the bounds.
+     *
+     * @param y The height to sample at, in pixels from the top. Not necessarily a pixel centre.
+     * @param out Room for at least {@link #maxSpans()} pairs.
+     * @return The number of spans written.
+     */
+    abstract int spans(float y, int width, int height, int radiusPercent, float[] out);
+
+    /**
+     * The most spans a single row can have.
+     */
+    int maxSpans() {
+        return 1;
+    }
+
+    /**
+     * A short, file system safe name. Part of render and mask keys.
+     */
+    public String key() {
+        return key;
+    }
+
+    /**
+     * Whether the radius setting changes the shape. Masks of shapes that ignore it are shared
+     * between every radius.
+     */
+    public boolean usesRadius() {
+        return usesRadius;
+    }
+
+    /**
+     * The value stored in the widget's preferences, read back by {@link #fromPref(String)}.
+     */
+    public String prefValue() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+
+    /**
+     * Reads a shape back from a preference value. Besides the built in keys, a value of
+     * "path:x,y x,y ..." is a polygon with corners given as fractions of the widget size.
+     *
+     * @return The shape, or the rounded rectangle when the value is null or not understood.
+     */
+    public static WidgetShape fromPref(String value) {
+        if (value == null) return ROUNDED_RECT;
+        for (WidgetShape shape : BUILT_IN) {
+            if (shape.key.equals(value)) return shape;
+        }
+        if (value.startsWith(PATH_PREFIX)) {
+            float[] points = parsePoints(value.substring(PATH_PREFIX.length()));
+            if (points != null) return new PathShape(value, "Custom", points, false);
+        }
+        return ROUNDED_RECT;
+    }
+
+    private static float[] parsePoints(String text) {
+        String[] pairs = text.trim().split("\\s+");
+        if (pairs.length < 3) return null;
+        float[] points = new float[pairs.length * 2];
+        try {
+            for (int i = 0; i < pairs.length; i++) {
+                String[] xy = pairs[i].split(",");
+                if (xy.length != 2) return null;
+                points[i * 2] = Float.parseFloat(xy[0]);
+                points[i * 2 + 1] = Float.parseFloat(xy[1]);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return points;
+    }
+
+    private static float[] heartOutline() {
+        // The classic parametric heart, 32 wide and 29 high, flipped so y grows downwards
+        // and centred in the unit square
+        int steps = 64;
+        float[] points = new float[steps * 2];
+        for (int i = 0; i < steps; i++) {
+            double t = 2 * Math.PI * i / steps;
+            double x = 16 * Math.pow(Math.sin(t), 3);
+            double y = 13 * Math.cos(t) - 5 * Math.cos(2 * t) - 2 * Math.cos(3 * t) - Math.cos(4 * t);
+            points[i * 2] = (float) ((x + 16) / 32);
+            points[i * 2 + 1] = (float) ((13.5 - y) / 32);
+        }
+        return points;
+    }
+
+    /**
+     * A polygon, filled with the even-odd rule. Corners are fractions of the box the shape
+     * is drawn in: the whole widget, or the largest centred square when the aspect is kept.
+     */
+    private static final class PathShape extends WidgetShape {
+        private final String pref;
+        private final float[] points;
+        private final boolean keepAspect;
+
+        PathShape(String pref, String label, float[] points, boolean keepAspect) {
+            // Custom paths are keyed by a digest of their points, the value itself is not file safe
+            super(pref.startsWith(PATH_PREFIX) ? "path" + sha256(pref) : pref, label, false);
+            this.pref = pref;
+            this.points = points;
+            this.keepAspect = keepAspect;
+        }
+
+        @Override
+        public String prefValue() {
+            return pref;
+        }
+
+        private static String sha256(String value) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // Every Java platform is required to provide it
+                throw new IllegalStateException(e);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(value.getBytes(StandardCharsets.UTF_8))) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+
+        @Override
+        int maxSpans() {
+            return points.length / 4 + 1;
+        }
+
+        @Override
+        int spans(float y, int width, int height, int radiusPercent, float[] out) {
+            float boxWidth = keepAspect ? Math.min(width, height) : width;
+            float boxHeight = keepAspect ? Math.min(width, height) : height;
+            float left = (width - boxWidth) / 2f;
+            float top = (height - boxHeight) / 2f;
+            float v = (y - top) / boxHeight;
+
+            // Crossings of the row with every edge, kept sorted by insertion, written straight to out
+            int crossings = 0;
+            int count = points.length / 2;
+            for (int i = 0; i < count; i++) {
+                int j = (i + 1) % count;
+                float y0 = points[i * 2 + 1];
+                float y1 = points[j * 2 + 1];
+                // Half open so a row through a vertex counts it once
+                if ((y0 <= v) == (y1 <= v)) continue;
+
+                float x0 = points[i * 2];
+                float x1 = points[j * 2];
+                float x = left + (x0 + (v - y0) / (y1 - y0) * (x1 - x0)) * boxWidth;
+                int k = crossings++;
+                while (k > 0 && out[k - 1] > x) {
+                    out[k] = out[k - 1];
+                    k--;
+                }
+                out[k] = x;
+            }
+            return crossings / 2;
+        }
+    }
+}
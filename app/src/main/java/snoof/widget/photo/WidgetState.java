@@ -0,0 +1,101 @@
+package snoof.widget.photo;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything stored for one widget: its settings, the photo it shows and its album.
+ * Immutable, changes make a new instance; see {@link WidgetStateStore} for how records are
+ * kept and written. Free of Android types like {@link CropSelection}, so the record format
+ * can be checked on a plain JVM.
+ */
+public final class WidgetState {
+
+    private static final int VERSION = 1;
+
+    /** A widget nothing was saved for yet, also what widgets from before the store read as. */
+    public static final WidgetState DEFAULT = new WidgetState(50, WidgetShape.ROUNDED_RECT, CropSelection.NONE,
+            null, Collections.emptyList(), 0);
+
+    public final int radiusPercent;
+    public final WidgetShape shape;
+    public final CropSelection crop;
+    /** Hash of the photo shown, in {@link SourceImageStore}, or null for none. */
+    public final String sourceHash;
+    /** Hashes of the album's photos in order, empty when the widget is not an album. */
+    public final List<String> album;
+    public final int albumPosition;
+
+    WidgetState(int radiusPercent, WidgetShape shape, CropSelection crop, String sourceHash, List<String> album,
+                int albumPosition) {
+        this.radiusPercent = radiusPercent;
+        this.shape = shape;
+        this.crop = crop;
+        this.sourceHash = sourceHash;
+        this.album = album.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(album));
+        this.albumPosition = albumPosition;
+    }
+
+    public WidgetState withSettings(int radiusPercent, WidgetShape shape, CropSelection crop) {
+        return new WidgetState(radiusPercent, shape, crop, sourceHash, album, albumPosition);
+    }
+
+    public WidgetState withSourceHash(String sourceHash) {
+        return new WidgetState(radiusPercent, shape, crop, sourceHash, album, albumPosition);
+    }
+
+    /**
+     * Makes the widget an album starting at its first photo, or no album for an empty list.
+     */
+    public WidgetState withAlbum(List<String> album) {
+        return new WidgetState(radiusPercent, shape, crop, sourceHash, album, 0);
+    }
+
+    public WidgetState withAlbumPosition(int albumPosition) {
+        return new WidgetState(radiusPercent, shape, crop, sourceHash, album, albumPosition);
+    }
+
+    /**
+     * Writes the record, read back by {@link #read(DataInputStream)}.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeInt(radiusPercent);
+        out.writeUTF(shape.prefValue());
+        out.writeBoolean(crop.enabled);
+        out.writeFloat(crop.centerX);
+        out.writeFloat(crop.centerY);
+        out.writeFloat(crop.zoom);
+        out.writeBoolean(sourceHash != null);
+        if (sourceHash != null) out.writeUTF(sourceHash);
+        out.writeInt(album.size());
+        for (String hash : album) {
+            out.writeUTF(hash);
+        }
+        out.writeInt(albumPosition);
+    }
+
+    /**
+     * @throws IOException If the record is cut short or from an unknown version.
+     */
+    static WidgetState read(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        if (version != VERSION) throw new IOException("Unknown widget state version " + version);
+
+        int radiusPercent = in.readInt();
+        WidgetShape shape = WidgetShape.fromPref(in.readUTF());
+        CropSelection crop = new CropSelection(in.readBoolean(), in.readFloat(), in.readFloat(), in.readFloat());
+        String sourceHash = in.readBoolean() ? in.readUTF() : null;
+        int albumSize = in.readInt();
+        if (albumSize < 0) throw new IOException("Bad album size " + albumSize);
+        List<String> album = new ArrayList<>(albumSize);
+        for (int i = 0; i < albumSize; i++) {
+            album.add(in.readUTF());
+        }
+        return new WidgetState(radiusPercent, shape, crop, sourceHash, album, in.readInt());
+    }
+}
@@ -0,0 +1,341 @@
+package snoof.widget.photo;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+/**
+ * The one place per widget state lives, as a {@link WidgetState} record per widget.
+ *
+ * All records are read into memory once, so reads on the update path never touch the disk.
+ * Changes apply to memory right away and are written behind, on a single writer thread,
+ * {@link #WRITE_DELAY_MS} after the first unsaved change: every change made in the meantime
+ * goes out in that one batch, and a widget changed many times, such as a slider being
+ * dragged or an album ticking, is written once with its latest state.
+ *
+ * Each record is its own file, written to a temporary file, synced and renamed over the
+ * old one, so a crash leaves either the previous record or the new one and never a torn
+ * file. A change made less than {@link #WRITE_DELAY_MS} before the process dies is lost,
+ * as with SharedPreferences.apply. A record that fails to write stays unsaved and is tried
+ * again, waiting twice as long each time up to {@link #MAX_RETRY_DELAY_MS}.
+ *
+ * The corner radius older versions kept in SharedPreferences is moved in on first load.
+ * Their pic_<id>.png files were saved already rounded, so a widget that still has one
+ * starts at radius 0 instead; rounding it again would double its corners.
+ */
+public final class WidgetStateStore {
+
+    private static final String TAG = "WidgetStateStore";
+    private static final String STATE_DIR = "widgets";
+    private static final String SUFFIX = ".state";
+    private static final long WRITE_DELAY_MS = 500;
+    private static final long MAX_RETRY_DELAY_MS = 60_000;
+
+    private static final String PREFS_NAME = "PhotoWidgetPrefs";
+    // The corner radius of older versions, as <prefix><appWidgetId>
+    private static final String PREF_RADIUS_KEY = "radius_percent_";
+
+    private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(
+            r -> new Thread(r, "SnoofStateWriter"));
+
+    private static final Object lock = new Object();
+    // Null until loaded
+    private static Map<Integer, WidgetState> states;
+    private static File stateDir;
+    // Widgets changed since the last write, and whether a write is already scheduled
+    private static final Set<Integer> dirty = new HashSet<>();
+    private static boolean writeScheduled;
+    // Delay before trying failed records again, doubled per failed batch
+    private static long retryDelayMs = WRITE_DELAY_MS;
+
+    private WidgetStateStore() {}
+
+    /**
+     * Starts reading the records on the writer thread, so the first widget update finds
+     * them in memory. Called from {@link SnoofApplication#onCreate()}.
+     */
+    public static void preload(Context context) {
+        Context appContext = context.getApplicationContext();
+        writer.execute(() -> {
+            synchronized (lock) {
+                ensureLoaded(appContext);
+            }
+        });
+    }
+
+    /**
+     * Returns a widget's state, {@link WidgetState#DEFAULT} if nothing was saved for it.
+     */
+    public static WidgetState get(Context context, int appWidgetId) {
+        synchronized (lock) {
+            ensureLoaded(context);
+            WidgetState state = states.get(appWidgetId);
+            return state != null ? state : WidgetState.DEFAULT;
+        }
+    }
+
+    /**
+     * Changes a widget's state. The change is visible to every reader at once and written
+     * to disk shortly after, merged with any other change made until then.
+     *
+     * @param change Gets the current state and returns the new one. Runs under the store's
+     *               lock, so read-modify-write is atomic; keep it short.
+     * @return The new state.
+     */
+    public static WidgetState update(Context context, int appWidgetId, UnaryOperator<WidgetState> change) {
+        synchronized (lock) {
+            ensureLoaded(context);
+            WidgetState current = states.get(appWidgetId);
+            WidgetState updated = change.apply(current != null ? current : WidgetState.DEFAULT);
+            if (updated == current) return updated;
+
+            states.put(appWidgetId, updated);
+            markDirty(appWidgetId);
+            return updated;
+        }
+    }
+
+    /**
+     * Forgets the state of several widgets, removed from disk in the same batch.
+     */
+    public static void delete(Context context, int[] appWidgetIds) {
+        synchronized (lock) {
+            ensureLoaded(context);
+            for (int appWidgetId : appWidgetIds) {
+                if (states.remove(appWidgetId) != null) markDirty(appWidgetId);
+            }
+        }
+    }
+
+    /**
+     * Whether some widget shows the source with this hash or has it in its album.
+     */
+    public static boolean isInUse(Context context, String hash) {
+        synchronized (lock) {
+            ensureLoaded(context);
+            for (WidgetState state : states.values()) {
+                if (hash.equals(state.sourceHash) || state.album.contains(hash)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Every widget id a state is stored for.
+     */
+    public static Set<Integer> getWidgetIds(Context context) {
+        synchronized (lock) {
+            ensureLoaded(context);
+            return new HashSet<>(states.keySet());
+        }
+    }
+
+    /**
+     * Writes pending changes now instead of after the delay, for when the process may not
+     * live that long. The returned future completes once they are on disk.
+     */
+    public static Future<?> flush() {
+        return writer.submit(WidgetStateStore::writeDirty);
+    }
+
+    private static void markDirty(int appWidgetId) {
+        dirty.add(appWidgetId);
+        scheduleWrite(WRITE_DELAY_MS);
+    }
+
+    private static void scheduleWrite(long delayMs) {
+        if (writeScheduled) return;
+        writeScheduled = true;
+        writer.schedule(WidgetStateStore::writeDirty, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes every record changed since the last batch. Runs on the writer thread only, so
+     * two writes of the same file never overlap.
+     */
+    private static void writeDirty() {
+        Map<Integer, WidgetState> batch = new HashMap<>();
+        File dir;
+        synchronized (lock) {
+            if (dirty.isEmpty()) return;
+            for (int appWidgetId : dirty) {
+                // Null for a deleted widget
+                batch.put(appWidgetId, states.get(appWidgetId));
+            }
+            dirty.clear();
+            writeScheduled = false;
+            dir = stateDir;
+        }
+
+        List<Integer> failed = new ArrayList<>();
+        for (Map.Entry<Integer, WidgetState> entry : batch.entrySet()) {
+            File file = new File(dir, entry.getKey() + SUFFIX);
+            try {
+                if (entry.getValue() == null) {
+                    if (file.exists() && !file.delete()) throw new IOException("Cannot delete");
+                } else {
+                    writeAtomically(file, entry.getValue());
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to save widget " + entry.getKey() + ": " + e.getMessage());
+                failed.add(entry.getKey());
+            }
+        }
+
+        synchronized (lock) {
+            if (failed.isEmpty()) {
+                retryDelayMs = WRITE_DELAY_MS;
+                return;
+            }
+            // Memory still has the state, write whatever it holds by then on the next try
+            dirty.addAll(failed);
+            retryDelayMs = Math.min(retryDelayMs * 2, MAX_RETRY_DELAY_MS);
+            // A change made during this batch may have scheduled the next one already
+            scheduleWrite(retryDelayMs);
+        }
+    }
+
+    private static void writeAtomically(File file, WidgetState state) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            state.write(data);
+            data.flush();
+            // On disk before the rename makes it the record
+            out.getFD().sync();
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot replace " + file.getName());
+        }
+    }
+
+    private static void ensureLoaded(Context context) {
+        if (states != null) return;
+
+        File dir = new File(context.getFilesDir(), STATE_DIR);
+        if (!dir.exists()) dir.mkdirs();
+        Map<Integer, WidgetState> loaded = new HashMap<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(".tmp")) {
+                    // A write the process did not live to finish, the record before it is intact
+                    file.delete();
+                    continue;
+                }
+                int appWidgetId = parseId(name);
+                if (appWidgetId == -1) continue;
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                    loaded.put(appWidgetId, WidgetState.read(in));
+                } catch (IOException e) {
+                    Log.e(TAG, "Skipping unreadable state " + name + ": " + e.getMessage());
+                }
+            }
+        }
+
+        stateDir = dir;
+        states = loaded;
+        migratePreferences(context);
+        Log.d(TAG, "Loaded " + states.size() + " widget states");
+    }
+
+    /**
+     * Moves the corner radius older versions kept in SharedPreferences into records, see
+     * the class comment for widgets that still have a pre-rounded file. A record already on
+     * disk wins over a leftover key for the same widget.
+     */
+    private static void migratePreferences(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        Set<Integer> ids = new HashSet<>();
+        for (String key : prefs.getAll().keySet()) {
+            int appWidgetId = parseId(key, PREF_RADIUS_KEY);
+            if (appWidgetId != -1) ids.add(appWidgetId);
+        }
+        Set<Integer> preRounded = findLegacyFiles(context);
+        ids.addAll(preRounded);
+        if (ids.isEmpty()) return;
+
+        for (int appWidgetId : ids) {
+            if (states.containsKey(appWidgetId)) continue;
+            int radiusPercent = preRounded.contains(appWidgetId) ? 0
+                    : prefs.getInt(PREF_RADIUS_KEY + appWidgetId, WidgetState.DEFAULT.radiusPercent);
+            WidgetState state = WidgetState.DEFAULT.withSettings(
+                    radiusPercent, WidgetState.DEFAULT.shape, WidgetState.DEFAULT.crop);
+            states.put(appWidgetId, state);
+            try {
+                writeAtomically(new File(stateDir, appWidgetId + SUFFIX), state);
+            } catch (IOException e) {
+                // Keys stay for the next start to try again
+                Log.e(TAG, "Failed to migrate widget " + appWidgetId + ": " + e.getMessage());
+                return;
+            }
+        }
+
+        SharedPreferences.Editor editor = prefs.edit();
+        for (int appWidgetId : ids) {
+            editor.remove(PREF_RADIUS_KEY + appWidgetId);
+        }
+        editor.apply();
+        Log.d(TAG, "Migrated " + ids.size() + " widgets from preferences");
+    }
+
+    /**
+     * Ids of the widgets with a pic_<id>.png of older versions, not yet moved into the
+     * {@link SourceImageStore}.
+     */
+    private static Set<Integer> findLegacyFiles(Context context) {
+        Set<Integer> ids = new HashSet<>();
+        String[] names = context.getDir("imgDir", Context.MODE_PRIVATE).list();
+        if (names == null) return ids;
+        for (String name : names) {
+            if (!name.endsWith(".png")) continue;
+            int appWidgetId = parseId(name.substring(0, name.length() - ".png".length()), "pic_");
+            if (appWidgetId != -1) ids.add(appWidgetId);
+        }
+        return ids;
+    }
+
+    private static int parseId(String fileName) {
+        if (!fileName.endsWith(SUFFIX)) return -1;
+        return parseId(fileName.substring(0, fileName.length() - SUFFIX.length()), "");
+    }
+
+    /**
+     * Reads the id out of a name of the form prefix, id.
+     *
+     * @return The id, or -1 if the name does not have that form.
+     */
+    private static int parseId(String name, String prefix) {
+        if (!name.startsWith(prefix) || name.length() == prefix.length()) return -1;
+        try {
+            return Integer.parseInt(name.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
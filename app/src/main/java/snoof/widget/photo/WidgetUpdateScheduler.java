@@ -0,0 +1,181 @@
+package snoof.widget.photo;
+
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders and pushes widget updates on a small shared worker pool, off the broadcast
+ * receiver's main thread.
+ * Requests for a widget that is already queued are merged into the pending render. If the
+ * widget is rendering right now, it renders once more afterwards, so the final push always
+ * reflects the latest options. The pool is kept small because every worker may hold a
+ * decoded photo, and that is what bounds peak memory.
+ */
+public class WidgetUpdateScheduler {
+
+    private static final String TAG = "WidgetUpdateScheduler";
+
+    // goAsync gives a receiver about 10 seconds, finish a little before that
+    private static final long ASYNC_BUDGET_MS = 9_000;
+    private static final int WORKERS = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() / 2));
+
+    private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            WORKERS, WORKERS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            r -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "SnoofWidgetUpdate"));
+
+    static {
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    // Tasks queued or running on the pool, see awaitIdle
+    private static final AtomicInteger pending = new AtomicInteger();
+
+    private static final Object lock = new Object();
+    private static final Map<Integer, Request> requests = new HashMap<>();
+
+    private static final class Request {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        boolean rerun;
+    }
+
+    private WidgetUpdateScheduler() {}
+
+    /**
+     * Queues a render of one widget and returns a future that completes once its update
+     * has been pushed to the launcher.
+     */
+    public static CompletableFuture<Void> request(Context context, AppWidgetManager appWidgetManager, int appWidgetId) {
+        Context appContext = context.getApplicationContext();
+        synchronized (lock) {
+            Request queued = requests.get(appWidgetId);
+            if (queued != null) {
+                queued.rerun = true;
+                return queued.done;
+            }
+
+            Request request = new Request();
+            requests.put(appWidgetId, request);
+            submit(() -> run(appContext, appWidgetManager, appWidgetId, request));
+            return request.done;
+        }
+    }
+
+    /**
+     * Queues renders for several widgets and calls onFinished once all of them have been
+     * pushed, or when the async budget of the calling receiver runs out.
+     */
+    public static void requestAll(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds,
+                                  Runnable onFinished) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[appWidgetIds.length];
+        for (int i = 0; i < appWidgetIds.length; i++) {
+            futures[i] = request(context, appWidgetManager, appWidgetIds[i]);
+        }
+        whenAllDone(futures, onFinished);
+    }
+
+    /**
+     * Runs other render work, such as preparing album frames, on the same pool as the updates
+     * so it shares their bound on decoded photos in memory.
+     */
+    public static CompletableFuture<Void> execute(Runnable work) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                work.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Background render failed: " + e.getMessage());
+            }
+        }, WidgetUpdateScheduler::submit);
+    }
+
+    /**
+     * Blocks until every queued update and background task has finished, including ones they
+     * queued themselves. For the load tests, which read the results back from disk.
+     *
+     * @return Whether the pool went idle before the timeout.
+     */
+    static boolean awaitIdle(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (pending.get() > 0) {
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    private static void submit(Runnable task) {
+        pending.incrementAndGet();
+        pool.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                pending.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Calls onFinished once all futures are done, or when the async budget of the calling
+     * receiver runs out.
+     */
+    static void whenAllDone(CompletableFuture<?>[] futures, Runnable onFinished) {
+        CompletableFuture.allOf(futures)
+                .orTimeout(ASYNC_BUDGET_MS, TimeUnit.MILLISECONDS)
+                .whenComplete((result, error) -> {
+                    if (error != null) {
+                        Log.w(TAG, "Widget updates failed or did not finish in time: " + error);
+                    }
+                    onFinished.run();
+                });
+    }
+
+    private static void run(Context context, AppWidgetManager appWidgetManager, int appWidgetId, Request request) {
+        Throwable failure = null;
+        try {
+            while (true) {
+                synchronized (lock) {
+                    request.rerun = false;
+                }
+
+                try {
+                    PhotoPickerWidgetProvider.updateAppWidget(context, appWidgetManager, appWidgetId);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to update widget " + appWidgetId + ": " + e.getMessage());
+                }
+
+                synchronized (lock) {
+                    if (!request.rerun) {
+                        requests.remove(appWidgetId);
+                        break;
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            // Typically an OutOfMemoryError from a decode, give up on this round
+            Log.e(TAG, "Failed to update widget " + appWidgetId + ": " + t);
+            failure = t;
+        } finally {
+            // Never leave the entry behind, later requests would merge into a dead one
+            synchronized (lock) {
+                requests.remove(appWidgetId, request);
+            }
+            if (failure == null) {
+                request.done.complete(null);
+            } else {
+                request.done.completeExceptionally(failure);
+            }
+        }
+    }
+}
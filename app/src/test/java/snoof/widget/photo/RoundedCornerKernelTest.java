@@ -0,0 +1,101 @@
+package snoof.widget.photo;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the corner-only rounding math, run on the development machine.
+ */
+public class RoundedCornerKernelTest {
+
+    private static final int OPAQUE_RED = 0xffff0000;
+
+    private static int[] solid(int width, int height) {
+        int[] pixels = new int[width * height];
+        Arrays.fill(pixels, OPAQUE_RED);
+        return pixels;
+    }
+
+    @Test
+    public void zeroRadius_leavesImageUntouched() {
+        int[] pixels = solid(16, 9);
+        new RoundedCornerKernel().apply(pixels, 16, 9, 0f);
+        assertArrayEquals(solid(16, 9), pixels);
+    }
+
+    @Test
+    public void cornersAreCleared_centreAndEdgesStayOpaque() {
+        int width = 40, height = 30;
+        int[] pixels = solid(width, height);
+        new RoundedCornerKernel().apply(pixels, width, height, 10f);
+
+        assertEquals(0, pixels[0]);
+        assertEquals(0, pixels[width - 1]);
+        assertEquals(0, pixels[(height - 1) * width]);
+        assertEquals(0, pixels[height * width - 1]);
+
+        assertEquals(OPAQUE_RED, pixels[(height / 2) * width + width / 2]);
+        assertEquals(OPAQUE_RED, pixels[width / 2]);
+        assertEquals(OPAQUE_RED, pixels[(height / 2) * width]);
+    }
+
+    @Test
+    public void onlyAlphaIsScaled() {
+        int[] pixels = solid(20, 20);
+        new RoundedCornerKernel().apply(pixels, 20, 20, 8f);
+        for (int argb : pixels) {
+            if (argb != 0) assertEquals(0x00ff0000, argb & 0x00ffffff);
+        }
+    }
+
+    @Test
+    public void cornersAreMirrorImages() {
+        int width = 33, height = 21;
+        int[] pixels = solid(width, height);
+        new RoundedCornerKernel().apply(pixels, width, height, 7.5f);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int alpha = pixels[y * width + x] >>> 24;
+                assertEquals(alpha, pixels[y * width + (width - 1 - x)] >>> 24);
+                assertEquals(alpha, pixels[(height - 1 - y) * width + x] >>> 24);
+            }
+        }
+    }
+
+    @Test
+    public void fullRadiusOnOddSize_middleColumnIsNotAppliedTwice() {
+        int size = 9;
+        int[] pixels = solid(size, size);
+        new RoundedCornerKernel().apply(pixels, size, size, size / 2f);
+
+        // The middle of each edge touches the circle and has to stay fully opaque
+        assertEquals(0xff, pixels[size / 2] >>> 24);
+        assertEquals(0xff, pixels[(size / 2) * size] >>> 24);
+        assertEquals(0xff, pixels[(size / 2) * size + size / 2] >>> 24);
+    }
+
+    @Test
+    public void radiusIsClampedToHalfTheShortestSide() {
+        int[] clamped = solid(12, 8);
+        int[] huge = solid(12, 8);
+        new RoundedCornerKernel().apply(clamped, 12, 8, 4f);
+        new RoundedCornerKernel().apply(huge, 12, 8, 500f);
+        assertArrayEquals(clamped, huge);
+    }
+
+    @Test
+    public void reusedKernel_matchesFreshKernel() {
+        RoundedCornerKernel reused = new RoundedCornerKernel();
+        reused.apply(solid(64, 64), 64, 64, 30f);
+
+        int[] a = solid(50, 70);
+        int[] b = solid(50, 70);
+        reused.apply(a, 50, 70, 12f);
+        new RoundedCornerKernel().apply(b, 50, 70, 12f);
+        assertArrayEquals(b, a);
+    }
+}
@@ -0,0 +1,460 @@
+package snoof.widget.photo;
+
+import android.app.Application;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProviderInfo;
+import android.content.ComponentCallbacks2;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Looper;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.ParameterizedRobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeFalse;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Load and regression tests for the whole widget path, run on the development machine with
+ * Robolectric standing in for the launcher and its AppWidgetManager.
+ *
+ * Each scenario binds a number of widgets, gives them photos through the picker's save path,
+ * lets the launcher refresh them through onUpdate, reconfigures every widget a few times and
+ * finally deletes them through onDeleted. Wall time, peak heap and bytes written are printed
+ * and compared against load-baseline.properties next to this class, recorded on the
+ * reference machine; a scenario that got worse by more than the tolerances below fails the
+ * build. Until a baseline has been recorded and committed, the comparison is skipped and
+ * the scenarios only report their numbers.
+ *
+ * The 50 and 200 widget scenarios and the 100 MP one take minutes and a 2 GB heap, so the
+ * regular unit test run leaves them out. Run them with
+ * <pre>./gradlew :app:testDebugUnitTest --tests '*WidgetLoadTest*' -Dsnoof.load.heavy=true</pre>
+ * Record the baseline, and new numbers after an intended change in cost, by adding
+ * -Dsnoof.load.record=true and the heavy flag, to cover every scenario. Once a baseline
+ * exists, a scenario missing from it fails.
+ */
+@RunWith(ParameterizedRobolectricTestRunner.class)
+@Config(sdk = 35)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+public class WidgetLoadTest {
+
+    private static final String BASELINE_RESOURCE = "load-baseline.properties";
+    private static final File BASELINE_SOURCE =
+            new File("src/test/resources/snoof/widget/photo/" + BASELINE_RESOURCE);
+
+    // Wall time is the noisiest, bytes written should barely move at all
+    private static final double WALL_TOLERANCE = 1.2;
+    private static final long WALL_SLACK_MS = 100;
+    private static final double HEAP_TOLERANCE = 1.1;
+    private static final long HEAP_SLACK_MB = 8;
+    private static final double WRITTEN_TOLERANCE = 1.02;
+
+    private static final long IDLE_TIMEOUT_MS = 5 * 60 * 1000L;
+
+    // Generated photos are kept for the whole run, building a 100 MP one takes a few seconds
+    private static final File PHOTO_DIR = new File(System.getProperty("java.io.tmpdir"), "snoof-load");
+
+    @ParameterizedRobolectricTestRunner.Parameters(name = "{0}")
+    public static Collection<Object[]> scenarios() {
+        List<Object[]> scenarios = new ArrayList<>(Arrays.asList(new Object[][]{
+                // name, widgets, megapixels, distinct photos, reconfigurations per widget
+                {"single_1mp", 1, 1, 1, 5},
+                {"few_2mp", 8, 2, 2, 2},
+        }));
+        if (Boolean.getBoolean("snoof.load.heavy")) {
+            scenarios.add(new Object[]{"many_12mp", 50, 12, 4, 2});
+            scenarios.add(new Object[]{"max_widgets", 200, 1, 8, 1});
+            scenarios.add(new Object[]{"huge_100mp", 4, 100, 1, 2});
+        }
+        return scenarios;
+    }
+
+    private final String name;
+    private final int widgets;
+    private final int megapixels;
+    private final int photos;
+    private final int reconfigurations;
+
+    private Application context;
+    private AppWidgetManager appWidgetManager;
+    private ComponentName provider;
+
+    public WidgetLoadTest(String name, int widgets, int megapixels, int photos, int reconfigurations) {
+        this.name = name;
+        this.widgets = widgets;
+        this.megapixels = megapixels;
+        this.photos = photos;
+        this.reconfigurations = reconfigurations;
+    }
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        appWidgetManager = AppWidgetManager.getInstance(context);
+        provider = new ComponentName(context, PhotoPickerWidgetProvider.class);
+        // Process wide caches outlive a Robolectric test, start every scenario cold
+        BitmapPool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        RenderStats.reset();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        BitmapPool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        // Like the caches, the state store is process wide, keep its writes out of the next scenario
+        WidgetStateStore.flush().get(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void load() throws Exception {
+        List<File> photoFiles = new ArrayList<>();
+        for (int i = 0; i < photos; i++) {
+            photoFiles.add(getPhoto(megapixels, i));
+        }
+        int[] appWidgetIds = bindWidgets();
+
+        System.gc();
+        resetPeakHeap();
+        long start = System.nanoTime();
+
+        // A photo picked for every widget, through the picker's save path
+        for (int i = 0; i < appWidgetIds.length; i++) {
+            File photo = photoFiles.get(i % photoFiles.size());
+            String hash = SourceImageStore.importFromUri(context, Uri.fromFile(photo));
+            PhotoPicker.saveAndUpdate(context, appWidgetIds[i], 50, WidgetShape.ROUNDED_RECT,
+                    CropSelection.NONE, hash);
+        }
+
+        // The launcher asks for every widget again, which should be served from the render cache
+        sendUpdate(appWidgetIds);
+
+        for (int round = 1; round <= reconfigurations; round++) {
+            for (int i = 0; i < appWidgetIds.length; i++) {
+                reconfigure(appWidgetIds[i], round, i);
+            }
+        }
+        assertTrue(WidgetUpdateScheduler.awaitIdle(IDLE_TIMEOUT_MS));
+        assertCurrentRendersStored(appWidgetIds);
+
+        sendDeleted(appWidgetIds);
+
+        long wallMs = (System.nanoTime() - start) / 1_000_000;
+        long peakHeapMb = peakHeap() / 1024 / 1024;
+        long writtenKb = RenderStats.getBytesWritten() / 1024;
+
+        for (int appWidgetId : appWidgetIds) {
+            assertNull("Source kept for deleted widget " + appWidgetId,
+                    SourceImageStore.getHash(context, appWidgetId));
+        }
+        assertTrue("Renders kept for deleted widgets", RenderCache.getWidgetIds(context).isEmpty());
+
+        System.out.println(String.format("%-12s %4d widgets %3d MP: %7d ms, %5d MB peak heap, %8d KB written",
+                name, widgets, megapixels, wallMs, peakHeapMb, writtenKb));
+        RenderStats.dump(new PrintWriter(System.out));
+
+        if (Boolean.getBoolean("snoof.load.record")) {
+            recordBaseline(wallMs, peakHeapMb, writtenKb);
+        } else {
+            checkBaseline(wallMs, peakHeapMb, writtenKb);
+        }
+    }
+
+    /**
+     * Registers the widgets with the stand-in AppWidgetManager, as a launcher would when they
+     * are placed.
+     */
+    private int[] bindWidgets() {
+        AppWidgetProviderInfo info = new AppWidgetProviderInfo();
+        info.provider = provider;
+        info.initialLayout = R.layout.photowidget;
+
+        int[] appWidgetIds = new int[widgets];
+        for (int i = 0; i < widgets; i++) {
+            appWidgetIds[i] = i + 1;
+            shadowOf(appWidgetManager).addBoundWidget(appWidgetIds[i], info);
+        }
+        return appWidgetIds;
+    }
+
+    /**
+     * Delivers APPWIDGET_UPDATE the way the launcher does, so onUpdate runs with a real
+     * goAsync, and waits for the renders it queued.
+     */
+    private void sendUpdate(int[] appWidgetIds) throws InterruptedException {
+        Intent intent = new Intent(AppWidgetManager.ACTION_APPWIDGET_UPDATE)
+                .setComponent(provider)
+                .putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, appWidgetIds);
+        context.sendBroadcast(intent);
+        shadowOf(Looper.getMainLooper()).idle();
+        assertTrue(WidgetUpdateScheduler.awaitIdle(IDLE_TIMEOUT_MS));
+    }
+
+    /**
+     * Removes the widgets the way the launcher does, one APPWIDGET_DELETED each, and waits
+     * for the cleanup they queued.
+     */
+    private void sendDeleted(int[] appWidgetIds) throws InterruptedException {
+        for (int appWidgetId : appWidgetIds) {
+            Intent intent = new Intent(AppWidgetManager.ACTION_APPWIDGET_DELETED)
+                    .setComponent(provider)
+                    .putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+            context.sendBroadcast(intent);
+        }
+        shadowOf(Looper.getMainLooper()).idle();
+        assertTrue(WidgetUpdateScheduler.awaitIdle(IDLE_TIMEOUT_MS));
+    }
+
+    /**
+     * Saves new settings for a widget like the picker does after a slider, shape or crop
+     * change. Every round and widget gets a different combination.
+     */
+    private void reconfigure(int appWidgetId, int round, int index) {
+        int radiusPercent = (round * 37 + index * 11) % 101;
+        List<WidgetShape> shapes = WidgetShape.BUILT_IN;
+        WidgetShape shape = shapes.get((round + index) % shapes.size());
+        CropSelection crop = round % 2 == 1
+                ? new CropSelection(true, 0.3f + 0.1f * (index % 5), 0.5f, 1f + round * 0.5f)
+                : CropSelection.NONE;
+        PhotoPicker.saveAndUpdate(context, appWidgetId, radiusPercent, shape, crop, null);
+    }
+
+    private void assertCurrentRendersStored(int[] appWidgetIds) {
+        for (int appWidgetId : appWidgetIds) {
+            String hash = SourceImageStore.getHash(context, appWidgetId);
+            assertNotNull("No source for widget " + appWidgetId, hash);
+            RenderKey key = PhotoPickerWidgetProvider.getRenderKey(context, appWidgetManager, appWidgetId, hash);
+            assertTrue("No render for widget " + appWidgetId, RenderCache.contains(context, key));
+        }
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * Sum of the peak usage of every heap pool since {@link #resetPeakHeap()}. The pools peak
+     * at different moments, so this is an upper bound, but a stable one.
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    private void checkBaseline(long wallMs, long peakHeapMb, long writtenKb) throws IOException {
+        Properties baseline = loadBaseline();
+        assumeFalse("No baseline recorded yet, record one with -Dsnoof.load.record=true", baseline.isEmpty());
+        List<String> regressions = new ArrayList<>();
+        long baseWall = getBaseline(baseline, "wallMs");
+        if (wallMs > baseWall * WALL_TOLERANCE + WALL_SLACK_MS) {
+            regressions.add("wall time " + wallMs + " ms, baseline " + baseWall + " ms");
+        }
+        long baseHeap = getBaseline(baseline, "peakHeapMb");
+        if (peakHeapMb > baseHeap * HEAP_TOLERANCE + HEAP_SLACK_MB) {
+            regressions.add("peak heap " + peakHeapMb + " MB, baseline " + baseHeap + " MB");
+        }
+        long baseWritten = getBaseline(baseline, "writtenKb");
+        if (writtenKb > baseWritten * WRITTEN_TOLERANCE) {
+            regressions.add("written " + writtenKb + " KB, baseline " + baseWritten + " KB");
+        }
+        assertTrue(name + " regressed: " + String.join("; ", regressions), regressions.isEmpty());
+    }
+
+    private long getBaseline(Properties baseline, String metric) {
+        String value = baseline.getProperty(name + "." + metric);
+        // An unchecked scenario would pass whatever it costs
+        assertNotNull("No baseline " + name + "." + metric + ", record one with -Dsnoof.load.record=true", value);
+        return Long.parseLong(value);
+    }
+
+    private Properties loadBaseline() throws IOException {
+        Properties baseline = new Properties();
+        try (InputStream in = WidgetLoadTest.class.getResourceAsStream(BASELINE_RESOURCE)) {
+            if (in != null) baseline.load(in);
+        }
+        return baseline;
+    }
+
+    /**
+     * Writes this scenario's numbers into the baseline in the source tree, keys sorted so
+     * a recorded baseline diffs cleanly.
+     */
+    private void recordBaseline(long wallMs, long peakHeapMb, long writtenKb) throws IOException {
+        Properties baseline = new Properties();
+        if (BASELINE_SOURCE.exists()) {
+            try (InputStream in = new FileInputStream(BASELINE_SOURCE)) {
+                baseline.load(in);
+            }
+        }
+        baseline.setProperty(name + ".wallMs", Long.toString(wallMs));
+        baseline.setProperty(name + ".peakHeapMb", Long.toString(peakHeapMb));
+        baseline.setProperty(name + ".writtenKb", Long.toString(writtenKb));
+
+        StringBuilder text = new StringBuilder();
+        text.append("# Recorded by WidgetLoadTest with -Dsnoof.load.record=true, see its class comment.\n")
+                .append("# Keys are <scenario>.wallMs, <scenario>.peakHeapMb and <scenario>.writtenKb; a scenario\n")
+                .append("# without keys fails.\n");
+        for (String key : new TreeSet<>(baseline.stringPropertyNames())) {
+            text.append(key).append('=').append(baseline.getProperty(key)).append('\n');
+        }
+        BASELINE_SOURCE.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(BASELINE_SOURCE)) {
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Returns a 4:3 PNG photo of about the given size, written on first use. Each variant has
+     * different pixels, so the store keeps them apart.
+     */
+    private static File getPhoto(int megapixels, int variant) throws IOException {
+        int width = (int) Math.round(Math.sqrt(megapixels * 1_000_000 * 4 / 3.0));
+        int height = width * 3 / 4;
+        File file = new File(PHOTO_DIR, megapixels + "mp_" + variant + ".png");
+        if (!file.exists()) {
+            PHOTO_DIR.mkdirs();
+            File tmp = new File(PHOTO_DIR, file.getName() + ".tmp");
+            writePng(tmp, width, height, variant);
+            assertTrue(tmp.renameTo(file));
+        }
+        return file;
+    }
+
+    /**
+     * Streams an RGB PNG to disk row by row: a gradient under a checkerboard, shifted per
+     * variant. Memory use does not depend on the size, so a 100 MP photo is as cheap to hold
+     * as a small one, only slower to write.
+     */
+    private static void writePng(File file, int width, int height, int variant) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'});
+
+            byte[] header = new byte[13];
+            putInt(header, 0, width);
+            putInt(header, 4, height);
+            header[8] = 8;  // bits per channel
+            header[9] = 2;  // RGB
+            writeChunk(out, "IHDR", header, header.length);
+
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (OutputStream idat = new DeflaterOutputStream(
+                    new ChunkOutputStream(out, "IDAT"), deflater, 1 << 16)) {
+                byte[] row = new byte[1 + width * 3];
+                for (int y = 0; y < height; y++) {
+                    // Filter byte 0, raw pixels
+                    for (int x = 0; x < width; x++) {
+                        boolean dark = ((x + variant * 16) / 64 + y / 64) % 2 == 0;
+                        row[1 + x * 3] = (byte) (x * 255 / width);
+                        row[2 + x * 3] = (byte) (y * 255 / height);
+                        row[3 + x * 3] = (byte) (dark ? 40 : 220);
+                    }
+                    idat.write(row);
+                }
+            } finally {
+                deflater.end();
+            }
+            writeChunk(out, "IEND", new byte[0], 0);
+        }
+    }
+
+    private static void writeChunk(OutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        byte[] word = new byte[4];
+        putInt(word, 0, length);
+        out.write(word);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        putInt(word, 0, (int) crc.getValue());
+        out.write(word);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Cuts whatever is written to it into PNG chunks of a fixed type, without closing the
+     * stream underneath.
+     */
+    private static final class ChunkOutputStream extends FilterOutputStream {
+        private final String type;
+        private final byte[] buffer = new byte[1 << 20];
+        private int count;
+
+        ChunkOutputStream(OutputStream out, String type) {
+            super(out);
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) flushChunk();
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (count == buffer.length) flushChunk();
+                int n = Math.min(length, buffer.length - count);
+                System.arraycopy(data, offset, buffer, count, n);
+                count += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushChunk();
+        }
+
+        private void flushChunk() throws IOException {
+            if (count == 0) return;
+            writeChunk(out, type, buffer, count);
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package snoof.widget.photo;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class WidgetStateTest {
+
+    @Test
+    public void defaultSurvivesRoundTrip() throws IOException {
+        WidgetState read = roundTrip(WidgetState.DEFAULT);
+        assertSame(WidgetState.DEFAULT.shape, read.shape);
+        assertEquals(WidgetState.DEFAULT.radiusPercent, read.radiusPercent);
+        assertEquals(WidgetState.DEFAULT.crop.key(), read.crop.key());
+        assertNull(read.sourceHash);
+        assertTrue(read.album.isEmpty());
+    }
+
+    @Test
+    public void everyFieldSurvivesRoundTrip() throws IOException {
+        WidgetShape shape = WidgetShape.BUILT_IN.get(WidgetShape.BUILT_IN.size() - 1);
+        WidgetState state = WidgetState.DEFAULT
+                .withSettings(73, shape, new CropSelection(true, 0.25f, 0.75f, 2.5f))
+                .withAlbum(Arrays.asList("aaa", "bbb", "ccc"))
+                .withAlbumPosition(2)
+                .withSourceHash("ccc");
+
+        WidgetState read = roundTrip(state);
+        assertEquals(73, read.radiusPercent);
+        assertEquals(shape.key(), read.shape.key());
+        assertEquals(state.crop.key(), read.crop.key());
+        assertEquals("ccc", read.sourceHash);
+        assertEquals(Arrays.asList("aaa", "bbb", "ccc"), read.album);
+        assertEquals(2, read.albumPosition);
+    }
+
+    @Test
+    public void newAlbumStartsAtFirstPhoto() {
+        WidgetState state = WidgetState.DEFAULT.withAlbum(Arrays.asList("aaa", "bbb")).withAlbumPosition(1);
+        assertEquals(0, state.withAlbum(Collections.singletonList("ccc")).albumPosition);
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedRecordIsRejected() throws IOException {
+        byte[] bytes = write(WidgetState.DEFAULT.withSourceHash("aaa"));
+        WidgetState.read(new DataInputStream(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 3))));
+    }
+
+    private static WidgetState roundTrip(WidgetState state) throws IOException {
+        return WidgetState.read(new DataInputStream(new ByteArrayInputStream(write(state))));
+    }
+
+    private static byte[] write(WidgetState state) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        state.write(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
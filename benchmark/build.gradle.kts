@@ -0,0 +1,49 @@
+// JMH benchmarks for the imaging hot paths, run on a plain JVM:
+//   ./gradlew :benchmark:jmh
+// Results land in benchmark/build/results/jmh/results.json.
+plugins {
+    java
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+// The pixel and size math in the app has no Android dependencies. Those files are compiled
+// into this module as they are, so the benchmarks measure exactly what ships.
+val imagingSources by tasks.registering(Sync::class) {
+    from("../app/src/main/java") {
+        include("snoof/widget/photo/CropSelection.java")
+        include("snoof/widget/photo/ImageSizing.java")
+        include("snoof/widget/photo/RoundedCornerKernel.java")
+        include("snoof/widget/photo/RenderKey.java")
+        include("snoof/widget/photo/WidgetShape.java")
+        include("snoof/widget/photo/ShapeMask.java")
+    }
+    into(layout.buildDirectory.dir("generated/imaging"))
+}
+
+sourceSets {
+    main {
+        java.srcDir(imagingSources)
+    }
+}
+
+dependencies {
+    jmh(libs.jmh.core)
+    jmh(libs.jmh.generator.annprocess)
+}
+
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    warmupIterations.set(3)
+    iterations.set(5)
+    fork.set(1)
+    // Allocation rate per operation, next to the ops/s of every benchmark
+    profilers.add("gc")
+    // A 50 MP frame is 200 MB of ints
+    jvmArgs.addAll("-Xms2g", "-Xmx2g")
+    resultFormat.set("JSON")
+}
@@ -0,0 +1,23 @@
+package snoof.widget.photo;
+
+/**
+ * Image sizes shared by the benchmarks, from a 1 MP screenshot to a 50 MP camera photo.
+ */
+final class ImageSizes {
+
+    private ImageSizes() {}
+
+    /**
+     * Width of a 4:3 image with the given number of megapixels.
+     */
+    static int width(int megapixels) {
+        return (int) Math.round(Math.sqrt(megapixels * 1_000_000.0 * 4 / 3));
+    }
+
+    /**
+     * Height of a 4:3 image with the given number of megapixels.
+     */
+    static int height(int megapixels) {
+        return (int) Math.round(width(megapixels) * 3 / 4.0);
+    }
+}
@@ -0,0 +1,59 @@
+package snoof.widget.photo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Sample size, target scale and corner radius selection, run once per render.
+ */
+@State(Scope.Thread)
+public class ImageSizingBenchmark {
+
+    @Param({"1", "12", "50"})
+    public int megapixels;
+
+    // Roughly a 1x1 widget, a 2x2 widget and a full screen
+    @Param({"180", "420", "1440"})
+    public int targetSize;
+
+    @Param({"0", "50", "100"})
+    public int radiusPercent;
+
+    private int width;
+    private int height;
+
+    @Setup
+    public void setUp() {
+        width = ImageSizes.width(megapixels);
+        height = ImageSizes.height(megapixels);
+    }
+
+    @Benchmark
+    public int inSampleSize() {
+        return ImageSizing.calculateInSampleSize(width, height, targetSize, targetSize);
+    }
+
+    @Benchmark
+    public float targetScale() {
+        int sample = ImageSizing.calculateInSampleSize(width, height, targetSize, targetSize);
+        return ImageSizing.calculateTargetScale(width / sample, height / sample, targetSize, targetSize);
+    }
+
+    @Benchmark
+    public float cornerRadius() {
+        return ImageSizing.calculateCornerRadius(width, height, radiusPercent);
+    }
+
+    @Benchmark
+    public void fullSizingPass(Blackhole blackhole) {
+        int sample = ImageSizing.calculateInSampleSize(width, height, targetSize, targetSize);
+        float scale = ImageSizing.calculateTargetScale(width / sample, height / sample, targetSize, targetSize);
+        int scaledWidth = Math.round(width / sample * scale);
+        int scaledHeight = Math.round(height / sample * scale);
+        blackhole.consume(ImageSizing.calculateCornerRadius(scaledWidth, scaledHeight, radiusPercent));
+    }
+}
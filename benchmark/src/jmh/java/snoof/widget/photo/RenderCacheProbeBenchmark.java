@@ -0,0 +1,78 @@
+package snoof.widget.photo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Cost of the render cache lookup on the update path: building the {@link RenderKey} and
+ * probing the cache directory for its file with {@link RenderKey#findIn(File)}, as
+ * RenderCache.getFile does. Every extension tried is a stat call, so a render stored under
+ * the last extension and a miss are the expensive cases. The directory holds a current and
+ * a legacy render per widget.
+ */
+@State(Scope.Thread)
+public class RenderCacheProbeBenchmark {
+
+    private static final String CURRENT = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+    // Renders written by older versions, still PNG
+    private static final String LEGACY = "60303ae22b998861bce3b28f33eec1be758a213c86c93c076dbe9f558c11c752";
+    private static final String MISSING = "fd61a03af4f77d870fc21e05e7e80678095c92d808cfb3b5c279ee04c74aca13";
+
+    @Param({"1", "12", "200"})
+    public int widgets;
+
+    private File dir;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("renders").toFile();
+        for (int id = 0; id < widgets; id++) {
+            new File(dir, key(id, CURRENT).name() + RenderKey.EXTENSIONS[0]).createNewFile();
+            new File(dir, key(id, LEGACY).name() + RenderKey.EXTENSIONS[RenderKey.EXTENSIONS.length - 1]).createNewFile();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static RenderKey key(int appWidgetId, String sourceVersion) {
+        return new RenderKey(appWidgetId, 420, 420, 50, "rounded", "full", sourceVersion);
+    }
+
+    @Benchmark
+    public RenderKey buildKey() {
+        return key(next++ % widgets, CURRENT);
+    }
+
+    @Benchmark
+    public File hitFirstExtension() {
+        return key(next++ % widgets, CURRENT).findIn(dir);
+    }
+
+    @Benchmark
+    public File hitLastExtension() {
+        return key(next++ % widgets, LEGACY).findIn(dir);
+    }
+
+    @Benchmark
+    public File miss() {
+        return key(next++ % widgets, MISSING).findIn(dir);
+    }
+}
@@ -0,0 +1,62 @@
+package snoof.widget.photo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+
+/**
+ * Cost of rounding a frame with {@link RoundedCornerKernel}, the math behind
+ * BitmapProcessor.roundCorners. copyFrame is the floor for any approach that writes a new
+ * full-size output, like the Canvas reference path.
+ */
+@State(Scope.Thread)
+public class RoundedCornerBenchmark {
+
+    @Param({"1", "12", "50"})
+    public int megapixels;
+
+    @Param({"0", "10", "50", "100"})
+    public int radiusPercent;
+
+    private int width;
+    private int height;
+    private float radius;
+    private int[] pixels;
+    private int[] copy;
+    private RoundedCornerKernel kernel;
+
+    @Setup
+    public void setUp() {
+        width = ImageSizes.width(megapixels);
+        height = ImageSizes.height(megapixels);
+        radius = ImageSizing.calculateCornerRadius(width, height, radiusPercent);
+        pixels = new int[width * height];
+        copy = new int[width * height];
+        Arrays.fill(pixels, 0xff336699);
+        kernel = new RoundedCornerKernel();
+    }
+
+    @Benchmark
+    public int[] roundCornersInPlace() {
+        // Rounding an already rounded frame costs the same, the work depends on position only
+        kernel.apply(pixels, width, height, radius);
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] roundCornersColdKernel() {
+        // New kernel every time, includes building the coverage table
+        new RoundedCornerKernel().apply(pixels, width, height, radius);
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] copyFrame() {
+        System.arraycopy(pixels, 0, copy, 0, pixels.length);
+        return copy;
+    }
+}
@@ -0,0 +1,51 @@
+package snoof.widget.photo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+
+/**
+ * Cost of cutting a frame to a shape with {@link ShapeMask}: building the mask, paid once
+ * per shape and size, and applying it, paid for every render.
+ */
+@State(Scope.Thread)
+public class ShapeMaskBenchmark {
+
+    @Param({"1", "12"})
+    public int megapixels;
+
+    @Param({"circle", "squircle", "heart"})
+    public String shape;
+
+    private int width;
+    private int height;
+    private WidgetShape widgetShape;
+    private ShapeMask mask;
+    private int[] pixels;
+
+    @Setup
+    public void setUp() {
+        width = ImageSizes.width(megapixels);
+        height = ImageSizes.height(megapixels);
+        widgetShape = WidgetShape.fromPref(shape);
+        mask = ShapeMask.create(widgetShape, width, height, 50);
+        pixels = new int[width * height];
+        Arrays.fill(pixels, 0xff336699);
+    }
+
+    @Benchmark
+    public ShapeMask createMask() {
+        return ShapeMask.create(widgetShape, width, height, 50);
+    }
+
+    @Benchmark
+    public int[] applyMask() {
+        // Applying to an already cut frame costs the same, every pixel in range is visited
+        mask.apply(pixels, 0, width, 0, height);
+        return pixels;
+    }
+}